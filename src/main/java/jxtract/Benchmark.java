@@ -0,0 +1,251 @@
+/*
+ * Benchmark.java
+ * A class for the JXtract collocation software.
+ */
+package jxtract;
+
+import java.io.*;
+import java.util.Vector;
+
+
+/**
+ * Benchmark measures how the whole JXtract pipeline scales with the size of
+ * the corpus. For each size it generates a synthetic corpus with
+ * CorpusGenerator, runs JXtract on it in a separate process, once to list
+ * the frequent words and once per planted collocation to find collocations,
+ * and reports the time, the peak resident memory and the throughput of each
+ * run. It also checks that each planted collocation was found.
+ */
+public class Benchmark {
+
+    private static final String PEAK_RSS = "peak-rss-kb: ";
+
+    private File workDir;
+    private int vocabularySize;
+    private Vector<String> phrases;
+    private double plantRate;
+    private long seed;
+
+    /**
+     * Constructor
+     *
+     * @param workDir_        Where the generated corpora are kept. A corpus
+     *                        that is already there is not generated again.
+     * @param vocabularySize_ The vocabulary size of the generated corpora.
+     * @param phrases_        The collocations to plant.
+     * @param plantRate_      The share of sentences that get a planted
+     *                        collocation.
+     * @param seed_           The seed of the generated corpora.
+     */
+    public Benchmark(File workDir_, int vocabularySize_, Vector<String> phrases_, double plantRate_, long seed_) {
+        workDir = workDir_;
+        vocabularySize = vocabularySize_;
+        phrases = phrases_;
+        plantRate = plantRate_;
+        seed = seed_;
+    }
+
+    /**
+     * Run the benchmark for one corpus size and print a line per run.
+     *
+     * @param megabytes    The size of the corpus.
+     * @param minFrequency The -minfrequency for the frequent word run.
+     * @throws IOException If the corpus can not be written or JXtract fails.
+     */
+    public void run(int megabytes, int minFrequency) throws IOException {
+        // Everything the corpus is generated from is in its name, so that a
+        // corpus generated with other settings is never reused
+        File corpus = new File(workDir, "zipf-" + vocabularySize + "-" + megabytes + "mb-" + plantRate + "-" + seed
+                + "-" + Integer.toHexString(phrases.hashCode()) + ".txt");
+        if (!corpus.exists()) {
+            CorpusGenerator generator = new CorpusGenerator(vocabularySize, 1.0, plantRate, seed);
+            for (String phrase : phrases) {
+                generator.plant(phrase);
+            }
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(corpus)), 1024 * 1024)) {
+                generator.generate(writer, megabytes * 1024L * 1024L);
+            }
+        }
+
+        report(megabytes, "frequencies", "", runJXtract(corpus,
+                "-printfrequencies", "-minfrequency", Integer.toString(minFrequency)));
+        for (String phrase : phrases) {
+            String pivot = phrase.split(" ")[0];
+            Result result = runJXtract(corpus, "-word", pivot);
+            report(megabytes, "collocations " + pivot, result.found(phrase) ? "found" : "NOT FOUND", result);
+        }
+    }
+
+    private void report(int megabytes, String stage, String check, Result result) {
+        double seconds = result.millis / 1000.0;
+        System.out.println(megabytes + "\t" + stage + "\t"
+                + String.format("%.2f", seconds) + "\t"
+                + (result.peakRssKb / 1024) + "\t"
+                + String.format("%.2f", megabytes / seconds) + "\t"
+                + check);
+    }
+
+    /**
+     * Runs JXtract in a new process, through childMain() so that the process
+     * reports its own peak memory use.
+     */
+    private Result runJXtract(File corpus, String... args) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Vector<String> command = new Vector<>();
+        command.add(java);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Benchmark.class.getName());
+        command.add("-child");
+        command.add("-source");
+        command.add(corpus.getPath());
+        for (String arg : args) {
+            command.add(arg);
+        }
+
+        Result result = new Result();
+        long start = System.currentTimeMillis();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(PEAK_RSS)) {
+                    result.peakRssKb = Long.parseLong(line.substring(PEAK_RSS.length()).trim());
+                } else {
+                    result.output.add(line);
+                }
+            }
+        }
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("JXtract failed on " + corpus);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for JXtract");
+        }
+        result.millis = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    /**
+     * Runs JXtract and then prints the peak resident memory of the process.
+     */
+    private static void childMain(String[] args) {
+        JXtract.main(args);
+
+        long peak = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmHWM:")) {
+                    peak = Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException e) {
+            // No /proc, so fall back to the committed heap
+            peak = Runtime.getRuntime().totalMemory() / 1024;
+        }
+        System.out.println(PEAK_RSS + peak);
+    }
+
+    private static void showHelp() {
+        System.out.println("Benchmark: runs JXtract on synthetic corpora of growing size");
+        System.out.println("Usage: Benchmark [-dir directory] [-sizes megabytes,...] [-vocabulary words] [-minfrequency frequency]");
+        System.out.println("                 [-plant phrase]... [-plantrate rate] [-seed seed]");
+        System.out.println("Example: Benchmark -dir /tmp/jxtract-bench -sizes 10,100,1000");
+        System.out.println("");
+        System.out.println("Prints one line per run: size in MB, stage, seconds, peak RSS in MB, MB/s, and");
+        System.out.println("whether the planted collocation was found.");
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("-child")) {
+            String[] childArgs = new String[args.length - 1];
+            System.arraycopy(args, 1, childArgs, 0, childArgs.length);
+            childMain(childArgs);
+            return;
+        }
+
+        String dir = System.getProperty("java.io.tmpdir") + File.separator + "jxtract-bench";
+        String sizes = "10,100,1000";
+        int vocabularySize = 50000;
+        int minFrequency = 1000;
+        double plantRate = 0.01;
+        long seed = 1;
+        Vector<String> phrases = new Vector<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-dir":
+                    dir = args[i + 1];
+                    break;
+                case "-sizes":
+                    sizes = args[i + 1];
+                    break;
+                case "-vocabulary":
+                    vocabularySize = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-minfrequency":
+                    minFrequency = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-plant":
+                    phrases.add(args[i + 1]);
+                    break;
+                case "-plantrate":
+                    plantRate = Double.parseDouble(args[i + 1]);
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(args[i + 1]);
+                    break;
+                case "-h":
+                case "-help":
+                case "--help":
+                    showHelp();
+                    System.exit(0);
+            }
+        }
+        if (phrases.isEmpty()) {
+            phrases.add("european central bank");
+            phrases.add("natural language processing");
+        }
+
+        File workDir = new File(dir);
+        if (!workDir.isDirectory() && !workDir.mkdirs()) {
+            System.out.println("Could not create directory " + dir);
+            System.exit(1);
+        }
+
+        Benchmark benchmark = new Benchmark(workDir, vocabularySize, phrases, plantRate, seed);
+        System.out.println("size_mb\tstage\tseconds\tpeak_rss_mb\tmb_per_s\tplanted");
+        try {
+            for (String size : sizes.split(",")) {
+                benchmark.run(Integer.parseInt(size.trim()), minFrequency);
+            }
+        } catch (IOException e) {
+            System.out.println("Error running benchmark: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The output and measurements of one JXtract run.
+     */
+    private static class Result {
+        Vector<String> output = new Vector<>();
+        long millis;
+        long peakRssKb;
+
+        /**
+         * Checks if the words of a phrase appear next to each other in one
+         * of the n-grams JXtract printed.
+         */
+        boolean found(String phrase) {
+            for (String line : output) {
+                if ((" " + line + " ").contains(" " + phrase + " ")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -7,10 +7,14 @@
  */
 package jxtract;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.Vector;
+import java.util.regex.Pattern;
 
 
 /**
@@ -21,6 +25,9 @@ import java.util.Vector;
  * @author Adam Goforth
  */
 public class BigramCollection {
+    private static final Pattern PUNCTUATION = Pattern.compile(" (\\.|!|\\?|,|;|:|\\-|\\(|\\)|\"|%|#)");
+    private static final Pattern CLOSED_CLASS = Pattern.compile("(the|a|and|be|but|by|can|such|could|do|for|have|him|her|i|is|we|he|she|it|may|might|mine|must|need|no|not|nor|none|our|where|whether|while|which|you|your|to|of|on|with|in|so|or|my|its|if|his|hers|as|an|at|this|they|there|then|that|are|would|who|whom|them|each|from|ourselves|when|these)");
+
     TreeMap<String, Bigram> bigrams;
     double wFreq;
 
@@ -45,12 +52,31 @@ public class BigramCollection {
      *                   BigramCollection tracks.
      */
     public void addSentence(String w, String s, boolean includeClosedClass) throws Exception {
-        int wIndex = 0;
+        addSentence(w, s, includeClosedClass, 1);
+    }
 
-        // Remove punctuation
-        s = s.replaceAll(" (\\.|!|\\?|,|;|:|\\-|\\(|\\)|\"|%|#)", "");
+    /**
+     * Adds a sentence as if it had been added <code>weight</code> times.
+     *
+     * @param s      The sentence to be added.
+     * @param weight The number of times the sentence occurs.
+     * @throws Exception If given sentence does not contain the word this
+     *                   BigramCollection tracks.
+     */
+    public void addSentence(String w, String s, boolean includeClosedClass, int weight) throws Exception {
+        addCleanSentence(w, removePunctuation(s), includeClosedClass, weight);
+    }
 
-        //DEBUG System.out.println("Cleaned sentence: " + s);
+    /**
+     * Adds a sentence that already had its punctuation removed.
+     *
+     * @param s      The sentence, as returned by removePunctuation().
+     * @param weight The number of times the sentence occurs.
+     * @throws Exception If given sentence does not contain the word this
+     *                   BigramCollection tracks.
+     */
+    void addCleanSentence(String w, String s, boolean includeClosedClass, int weight) throws Exception {
+        int wIndex = 0;
 
         // Split the sentence up into "words" (characters separated by at least one space)
         String[] words = s.split(" ");
@@ -87,19 +113,142 @@ public class BigramCollection {
                 // Don't insert w
                 // Poor man's closed-class word exclusion
                 // TODO Replace with tag recognition
-                if (!w.equals(words[i]) && (includeClosedClass || !words[i].matches("(the|a|and|be|but|by|can|such|could|do|for|have|him|her|i|is|we|he|she|it|may|might|mine|must|need|no|not|nor|none|our|where|whether|while|which|you|your|to|of|on|with|in|so|or|my|its|if|his|hers|as|an|at|this|they|there|then|that|are|would|who|whom|them|each|from|ourselves|when|these)"))) {
+                if (!w.equals(words[i]) && (includeClosedClass || !isClosedClass(words[i]))) {
                     // Bigram doesn't exist yet, so create it and insert into
                     // the collection
                     if (!containsBigram(words[i])) {
                         bigrams.put(words[i], new Bigram(w, words[i]));
                         //DEBUG System.out.println("Creating bigram " + words[i]);
                     }
-                    bigrams.get(words[i]).addInstance(i - wIndex);
+                    bigrams.get(words[i]).addInstance(i - wIndex, weight);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the punctuation tokens from a sentence.
+     *
+     * @param s The sentence.
+     * @return The sentence without punctuation.
+     */
+    static String removePunctuation(String s) {
+        return PUNCTUATION.matcher(s).replaceAll("");
+    }
+
+    /**
+     * Removes punctuation from a sentence and splits it up into "words"
+     * (characters separated by at least one space). This is how
+     * addSentence() sees a sentence.
+     *
+     * @param s The sentence.
+     * @return The words of the sentence.
+     */
+    static String[] tokenize(String s) {
+        return removePunctuation(s).split(" ");
+    }
+
+    /**
+     * Poor man's closed-class word test, used to leave words like "the" out
+     * of Stage 1.
+     *
+     * @param word The word.
+     * @return <code>true</code> if the word is a closed-class word.
+     */
+    static boolean isClosedClass(String word) {
+        return CLOSED_CLASS.matcher(word).matches();
+    }
+
+    /**
+     * Adds the bigrams of another collection for the same word to this one.
+     * Merging is associative and commutative, so a corpus can be split into
+     * parts, each part collected on its own, and the parts merged in any
+     * order to get the collection of the whole corpus.
+     *
+     * @param other The collection to add. It is not changed.
+     */
+    public void merge(BigramCollection other) {
+        for (Map.Entry<String, Bigram> entry : other.bigrams.entrySet()) {
+            Bigram otherBG = entry.getValue();
+            addCounts(otherBG.getw(), otherBG.getwi(), otherBG.p);
+        }
+    }
+
+    /**
+     * Adds counts for a bigram at each distance, as if addInstance() had been
+     * called that many times.
+     *
+     * @param w  The word this collection tracks.
+     * @param wi The collocate.
+     * @param p_ The counts, in the same layout as Bigram.p.
+     */
+    void addCounts(String w, String wi, int[] p_) {
+        Bigram tempBG = bigrams.get(wi);
+        if (tempBG == null) {
+            tempBG = new Bigram(w, wi);
+            bigrams.put(wi, tempBG);
+        }
+        for (int i = 0; i < 10; i++) {
+            tempBG.p[i] += p_[i];
+            tempBG.freq += p_[i];
+            wFreq += p_[i];
+        }
+    }
+
+    /**
+     * Writes the collection in a compact binary form that read() turns back
+     * into an equal collection. Only the distances a bigram was seen at are
+     * written.
+     *
+     * @param out Where to write the collection.
+     * @throws IOException If writing fails.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(bigrams.size());
+        for (Map.Entry<String, Bigram> entry : bigrams.entrySet()) {
+            Bigram tempBG = entry.getValue();
+            out.writeUTF(tempBG.getw());
+            out.writeUTF(tempBG.getwi());
+
+            // One bit per distance that has a count
+            int mask = 0;
+            for (int i = 0; i < 10; i++) {
+                if (tempBG.p[i] != 0) {
+                    mask |= 1 << i;
+                }
+            }
+            out.writeShort(mask);
+            for (int i = 0; i < 10; i++) {
+                if (tempBG.p[i] != 0) {
+                    out.writeInt(tempBG.p[i]);
                 }
             }
         }
     }
 
+    /**
+     * Reads a collection written by write().
+     *
+     * @param in Where to read the collection from.
+     * @return The collection.
+     * @throws IOException If reading fails.
+     */
+    public static BigramCollection read(DataInput in) throws IOException {
+        BigramCollection collection = new BigramCollection();
+        int count = in.readInt();
+        int[] p_ = new int[10];
+        for (int j = 0; j < count; j++) {
+            String w = in.readUTF();
+            String wi = in.readUTF();
+            int mask = in.readShort();
+            for (int i = 0; i < 10; i++) {
+                p_[i] = ((mask & (1 << i)) != 0) ? in.readInt() : 0;
+            }
+            collection.addCounts(w, wi, p_);
+        }
+        return collection;
+    }
+
     /**
      * Returns fbar, the average frequency of all bigrams for this word.
      *
@@ -238,7 +387,26 @@ public class BigramCollection {
         return passedStage;
     }
 
+    /**
+     * Runs Stage 2 of the algorithm and prints the resulting n-gram.
+     *
+     * @param T The threshold a word's share of a position must exceed to be
+     *          kept in the n-gram. Smadja recommends 0.75.
+     */
     public void stage2(double T) {
+        System.out.println(getStageTwoNgram(T));
+    }
+
+    /**
+     * Runs Stage 2 of the algorithm and returns the resulting n-gram, with
+     * an underscore for each position that has no dominant word.
+     *
+     * @param T The threshold a word's share of a position must exceed to be
+     *          kept in the n-gram. Smadja recommends 0.75.
+     * @return The n-gram, one word or underscore per position, each followed
+     * by a space.
+     */
+    public String getStageTwoNgram(double T) {
         // Go through all the bigrams and calculate the total occurrences of each
         // position
         Bigram tempBG = null;
@@ -299,10 +467,11 @@ public class BigramCollection {
             }
 
         }
+        StringBuilder output = new StringBuilder();
         for (String aNgram : ngram) {
-            System.out.print(aNgram + " ");
+            output.append(aNgram).append(" ");
         }
-        System.out.println("");
+        return output.toString();
     }
 
     /**
@@ -468,9 +637,10 @@ public class BigramCollection {
          * Insert an instance of a bigram into the Bigram
          *
          * @param offset The offset of wi compared to w
+         * @param weight The number of instances to insert
          * @throws Exception if the offset is out of bounds, which is < -5, 0, >5
          */
-        public void addInstance(int offset) throws Exception {
+        public void addInstance(int offset, int weight) throws Exception {
             if ((offset < -5) || (offset > 5) || (offset == 0)) {
                 throw new Exception("Cannot add instance: offset out of bounds");
             } else {
@@ -479,9 +649,9 @@ public class BigramCollection {
                 } else if (offset > 0) {
                     offset += 4;
                 }
-                p[offset]++;
-                freq++;
-                wFreq++;
+                p[offset] += weight;
+                freq += weight;
+                wFreq += weight;
             }
         }
 
@@ -0,0 +1,251 @@
+/*
+ * BlockIndex.java
+ * A class for the JXtract collocation software.
+ */
+package jxtract;
+
+import java.io.*;
+
+
+/**
+ * BlockIndex is a small sidecar index that lets scans skip the parts of the
+ * corpus that can not contain a word. The corpus file is split into blocks of
+ * about BLOCK_SIZE bytes, each starting at the beginning of a line, and the
+ * index keeps a Bloom filter of the words in each block. A block whose filter
+ * does not have a word definitely does not contain it; a block whose filter
+ * has it probably does, and is read.
+ * <p/>
+ * The filters hold both the words of the raw lines (what
+ * Corpus.getSentencesWith(String) looks for) and the words after punctuation
+ * is removed (what Corpus.getSentencesWith(String, String, int) looks for).
+ * <p/>
+ * The index records the length and modification time of the corpus it was
+ * built from. open() rebuilds an index whose corpus has changed.
+ */
+public class BlockIndex implements Closeable {
+
+    private static final int MAGIC = 0x4A584249;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int BLOOM_BITS = 16 * 1024;
+    private static final int BLOOM_LONGS = BLOOM_BITS / 64;
+    private static final int HASHES = 3;
+    private static final int RECORD_SIZE = 8 * (1 + BLOOM_LONGS);
+
+    private MappedFile file;
+    private long corpusLength;
+    private int blockCount;
+
+    private BlockIndex(File f, long corpusLength_) throws IOException {
+        file = new MappedFile(f);
+        corpusLength = corpusLength_;
+        if (file.size() < HEADER_SIZE || file.getInt(0) != MAGIC || file.getInt(4) != VERSION
+                || file.getInt(28) != BLOOM_LONGS) {
+            file.close();
+            throw new IOException(f + " is not a block index");
+        }
+        blockCount = file.getInt(24);
+    }
+
+    /**
+     * Open the index of a corpus file, building it first if it does not
+     * exist or the corpus changed since it was built.
+     *
+     * @param corpusFile The corpus file.
+     * @return The index.
+     * @throws IOException If the index can not be read or built, or the
+     *                     corpus is compressed.
+     */
+    public static BlockIndex open(File corpusFile) throws IOException {
+        // Scans seek to the blocks, which a compressed file can not do
+        if (ParallelGzipInputStream.isGzip(corpusFile)) {
+            throw new IOException("A compressed corpus can not have a block index");
+        }
+        File f = new File(corpusFile.getPath() + ".jxbi");
+        if (!isCurrent(f, corpusFile)) {
+            build(corpusFile, f);
+        }
+        return new BlockIndex(f, corpusFile.length());
+    }
+
+    /**
+     * Returns the number of blocks.
+     *
+     * @return The number of blocks.
+     */
+    public int size() {
+        return blockCount;
+    }
+
+    /**
+     * Returns the file offset of the first line of a block.
+     */
+    public long getStart(int block) {
+        return file.getLong(HEADER_SIZE + (long) RECORD_SIZE * block);
+    }
+
+    /**
+     * Returns the file offset just after the last line of a block.
+     */
+    public long getEnd(int block) {
+        return block + 1 < blockCount ? getStart(block + 1) : corpusLength;
+    }
+
+    /**
+     * Checks if a block may contain all of the given words.
+     *
+     * @param block The block.
+     * @param bits  The Bloom filter bits of the words, from getBits().
+     * @return <code>false</code> if the block definitely lacks one of the words.
+     */
+    public boolean mayContain(int block, int[] bits) {
+        long bloom = HEADER_SIZE + (long) RECORD_SIZE * block + 8;
+        for (int bit : bits) {
+            if ((file.getLong(bloom + 8 * (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the Bloom filter bits of some words, to pass to mayContain().
+     *
+     * @param words The words.
+     * @return The bits.
+     */
+    public static int[] getBits(String... words) {
+        int[] bits = new int[words.length * HASHES];
+        for (int i = 0; i < words.length; i++) {
+            setBits(words[i], bits, i * HASHES);
+        }
+        return bits;
+    }
+
+    /**
+     * Checks if a word can be looked up in the index. Words with spaces are
+     * never split out of a line, so they are not in the filters.
+     *
+     * @param word The word.
+     * @return <code>true</code> if the index can be used for the word.
+     */
+    public static boolean canIndex(String word) {
+        return !word.isEmpty() && word.indexOf(' ') < 0;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private static boolean isCurrent(File f, File corpusFile) {
+        if (!f.exists()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            return in.readInt() == MAGIC
+                    && in.readInt() == VERSION
+                    && in.readLong() == corpusFile.length()
+                    && in.readLong() == corpusFile.lastModified();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Build the index of a corpus file.
+     *
+     * @param corpusFile The corpus file.
+     * @param f          The index file to write.
+     * @throws IOException If the corpus can not be read or the index written.
+     */
+    private static void build(File corpusFile, File f) throws IOException {
+        long length = corpusFile.length();
+        long modified = corpusFile.lastModified();
+        int blocks = 0;
+        File tmp = new File(f.getPath() + ".tmp");
+
+        try (LineReader reader = LineReader.open(corpusFile, 0, Long.MAX_VALUE);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(length);
+            out.writeLong(modified);
+            out.writeInt(0);
+            out.writeInt(BLOOM_LONGS);
+
+            long[] bloom = new long[BLOOM_LONGS];
+            int[] bits = new int[HASHES];
+            long blockStart = 0;
+            String record;
+            while ((record = reader.readLine()) != null) {
+                for (String word : record.split(" ")) {
+                    addWord(bloom, bits, word);
+                }
+                for (String word : BigramCollection.tokenize(record)) {
+                    addWord(bloom, bits, word);
+                }
+
+                // Close the block once it is big enough
+                if (reader.getOffset() - blockStart >= BLOCK_SIZE) {
+                    writeBlock(out, blockStart, bloom);
+                    blocks++;
+                    blockStart = reader.getOffset();
+                }
+            }
+            if (reader.getOffset() > blockStart || blocks == 0) {
+                writeBlock(out, blockStart, bloom);
+                blocks++;
+            }
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.seek(24);
+            raf.writeInt(blocks);
+        }
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            if (!tmp.renameTo(f)) {
+                throw new IOException("Could not write " + f);
+            }
+        }
+    }
+
+    private static void addWord(long[] bloom, int[] bits, String word) {
+        setBits(word, bits, 0);
+        for (int bit : bits) {
+            bloom[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private static void writeBlock(DataOutputStream out, long start, long[] bloom) throws IOException {
+        out.writeLong(start);
+        for (int i = 0; i < BLOOM_LONGS; i++) {
+            out.writeLong(bloom[i]);
+            bloom[i] = 0;
+        }
+    }
+
+    /**
+     * Computes the filter bits of a word with double hashing.
+     */
+    private static void setBits(String word, int[] bits, int at) {
+        int h1 = mix(word.hashCode());
+        int h2 = mix(h1 ^ 0x9E3779B9) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            bits[at + i] = (h1 + i * h2) & (BLOOM_BITS - 1);
+        }
+    }
+
+    /**
+     * The finalizer of MurmurHash3, to spread the bits of String.hashCode().
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
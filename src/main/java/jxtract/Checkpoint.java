@@ -0,0 +1,336 @@
+/*
+ * Checkpoint.java
+ * A class for the JXtract collocation software.
+ */
+package jxtract;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+
+/**
+ * Checkpoint keeps the progress of a multi-pivot extraction run in a state
+ * directory, so that a run that dies can be resumed without redoing the
+ * pivots (or the Stage 2 passes of a pivot) that were already finished.
+ * <p/>
+ * The state directory holds two files. <code>pivots</code> is written once
+ * and records the list of pivots together with the corpus (its name, length
+ * and modification time), frequency threshold and <code>-word</code> (or
+ * <code>-allwords</code>) it was computed for.
+ * <code>journal</code> is an append-only log of finished work: the Stage 1
+ * result of a pivot, each Stage 2 n-gram, and the completion of a pivot. The journal is only flushed to disk every
+ * <code>interval</code> milliseconds, so checkpointing costs next to nothing
+ * compared to the corpus scans. A record that was cut off by a crash is
+ * dropped when the journal is loaded.
+ */
+public class Checkpoint {
+
+    private static final int RECORD_STAGE1 = 1;
+    private static final int RECORD_NGRAM = 2;
+    private static final int RECORD_DONE = 3;
+
+    private File dir;
+    private long interval;
+    private long lastFlush;
+    private FileOutputStream journalFile;
+    private DataOutputStream journal;
+
+    private Vector<String> pivots;
+    private Map<String, Vector<S1Bigram>> stageOne;
+    private Map<String, String> ngrams;
+    private Map<String, Vector<String>> pivotNgrams;
+    private Set<String> donePivots;
+
+    /**
+     * Constructor
+     *
+     * @param dirname   The state directory. It is created if it does not exist.
+     * @param interval_ The minimum time between two flushes of the journal,
+     *                  in milliseconds.
+     */
+    public Checkpoint(String dirname, long interval_) {
+        dir = new File(dirname);
+        interval = interval_;
+        pivots = null;
+        stageOne = new HashMap<>();
+        ngrams = new HashMap<>();
+        pivotNgrams = new HashMap<>();
+        donePivots = new HashSet<>();
+    }
+
+    /**
+     * Start a new journal in a directory that holds no earlier run. State
+     * left by an earlier run is never thrown away here, since it may be hours
+     * of work; it has to be resumed or removed by hand.
+     *
+     * @throws IOException If the state directory can not be written, or
+     *                     already holds a journal.
+     */
+    public void reset() throws IOException {
+        File journalPath = new File(dir, "journal");
+        if (journalPath.length() > 0) {
+            throw new IOException(dir + " holds the state of an earlier run. Use -resume to continue it, "
+                    + "or remove the directory to start over");
+        }
+        new File(dir, "pivots").delete();
+        openJournal(false);
+    }
+
+    /**
+     * Load the state left by an earlier run and continue its journal.
+     *
+     * @param source       The corpus file name of this run.
+     * @param minFrequency The frequency threshold of this run.
+     * @param word         The <code>-word</code> of this run, or an empty
+     *                     string for an <code>-allwords</code> run.
+     * @throws IOException If the state can not be read, or was written for a
+     *                     different corpus, threshold or word.
+     */
+    public void load(String source, int minFrequency, String word) throws IOException {
+        File pivotFile = new File(dir, "pivots");
+        if (pivotFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(pivotFile)))) {
+                String stateSource = in.readUTF();
+                long stateLength = in.readLong();
+                long stateModified = in.readLong();
+                int stateMinFrequency = in.readInt();
+                File sourceFile = new File(source);
+                if (!stateSource.equals(source) || stateLength != sourceFile.length()
+                        || stateModified != sourceFile.lastModified() || stateMinFrequency != minFrequency) {
+                    throw new IOException("State in " + dir + " was written for a different corpus or -minfrequency");
+                }
+                String stateWord = in.readUTF();
+                if (!stateWord.equals(word)) {
+                    throw new IOException("State in " + dir + " was written for "
+                            + (stateWord.equals("") ? "-allwords" : "-word " + stateWord));
+                }
+                int count = in.readInt();
+                pivots = new Vector<>(count);
+                for (int i = 0; i < count; i++) {
+                    pivots.add(in.readUTF());
+                }
+            }
+        }
+
+        File journalPath = new File(dir, "journal");
+        if (journalPath.exists()) {
+            byte[] bytes = Files.readAllBytes(journalPath.toPath());
+            ByteArrayInputStream bytesIn = new ByteArrayInputStream(bytes);
+            DataInputStream in = new DataInputStream(bytesIn);
+            long good = 0;
+            try {
+                while (bytesIn.available() > 0) {
+                    readRecord(in);
+                    good = bytes.length - bytesIn.available();
+                }
+            } catch (IOException e) {
+                // A record cut off by a crash. Everything before it is fine.
+            }
+            // Drop the partial record, so that new records follow good ones
+            try (RandomAccessFile raf = new RandomAccessFile(journalPath, "rw")) {
+                raf.setLength(good);
+            }
+        }
+        openJournal(true);
+    }
+
+    /**
+     * Returns the pivot list saved by an earlier run.
+     *
+     * @return The pivots, or <code>null</code> if none were saved.
+     */
+    public Vector<String> getPivots() {
+        return pivots;
+    }
+
+    /**
+     * Save the pivot list of this run.
+     *
+     * @param source       The corpus file name.
+     * @param minFrequency The frequency threshold the pivots were chosen with.
+     * @param word         The <code>-word</code> the pivots were given by, or
+     *                     an empty string for an <code>-allwords</code> run.
+     * @param pivots_      The pivots.
+     * @throws IOException If the file can not be written.
+     */
+    public void savePivots(String source, int minFrequency, String word, Vector<String> pivots_) throws IOException {
+        pivots = pivots_;
+        File tmp = new File(dir, "pivots.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeUTF(source);
+            out.writeLong(new File(source).length());
+            out.writeLong(new File(source).lastModified());
+            out.writeInt(minFrequency);
+            out.writeUTF(word);
+            out.writeInt(pivots.size());
+            for (String pivot : pivots) {
+                out.writeUTF(pivot);
+            }
+        }
+        Files.move(tmp.toPath(), new File(dir, "pivots").toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Checks if all the work for a pivot was finished by an earlier run.
+     *
+     * @param w The pivot.
+     * @return <code>true</code> if the pivot is finished.
+     */
+    public boolean isDone(String w) {
+        return donePivots.contains(w);
+    }
+
+    /**
+     * Returns the n-grams recorded for a pivot, in the order they were found.
+     *
+     * @param w The pivot.
+     * @return The n-grams. Never <code>null</code>.
+     */
+    public Vector<String> getNgrams(String w) {
+        Vector<String> found = pivotNgrams.get(w);
+        return found == null ? new Vector<String>() : found;
+    }
+
+    /**
+     * Returns the Stage 1 result recorded for a pivot.
+     *
+     * @param w The pivot.
+     * @return The bigrams that passed Stage 1, or <code>null</code> if Stage 1
+     * of this pivot was not recorded.
+     */
+    public Vector<S1Bigram> getStageOne(String w) {
+        return stageOne.get(w);
+    }
+
+    /**
+     * Returns the Stage 2 n-gram recorded for a bigram at a distance.
+     *
+     * @return The n-gram, or <code>null</code> if it was not recorded.
+     */
+    public String getNgram(String w, String wi, int distance) {
+        return ngrams.get(key(w, wi, distance));
+    }
+
+    /**
+     * Record the Stage 1 result of a pivot. Only the collocates and distances
+     * are kept, since nothing after Stage 1 uses the strength or spread.
+     */
+    public void recordStageOne(String w, Vector<S1Bigram> bigrams) throws IOException {
+        journal.writeByte(RECORD_STAGE1);
+        journal.writeUTF(w);
+        journal.writeInt(bigrams.size());
+        for (S1Bigram bigram : bigrams) {
+            journal.writeUTF(bigram.getwi());
+            journal.writeInt(bigram.getDistances().size());
+            for (Integer distance : bigram.getDistances()) {
+                journal.writeInt(distance);
+            }
+        }
+        stageOne.put(w, bigrams);
+        flushIfDue();
+    }
+
+    /**
+     * Record the Stage 2 n-gram of a bigram at a distance.
+     */
+    public void recordNgram(String w, String wi, int distance, String ngram) throws IOException {
+        journal.writeByte(RECORD_NGRAM);
+        journal.writeUTF(w);
+        journal.writeUTF(wi);
+        journal.writeInt(distance);
+        journal.writeUTF(ngram);
+        addNgram(w, wi, distance, ngram);
+        flushIfDue();
+    }
+
+    /**
+     * Record that all the work for a pivot is finished.
+     */
+    public void recordDone(String w) throws IOException {
+        journal.writeByte(RECORD_DONE);
+        journal.writeUTF(w);
+        donePivots.add(w);
+        flushIfDue();
+    }
+
+    /**
+     * Flush the journal to disk and close it.
+     *
+     * @throws IOException If the journal can not be written.
+     */
+    public void close() throws IOException {
+        if (journal != null) {
+            flush();
+            journal.close();
+            journal = null;
+        }
+    }
+
+    private void openJournal(boolean append) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create state directory " + dir);
+        }
+        journalFile = new FileOutputStream(new File(dir, "journal"), append);
+        journal = new DataOutputStream(new BufferedOutputStream(journalFile));
+        lastFlush = System.currentTimeMillis();
+    }
+
+    private void flushIfDue() throws IOException {
+        if (System.currentTimeMillis() - lastFlush >= interval) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        journal.flush();
+        journalFile.getFD().sync();
+        lastFlush = System.currentTimeMillis();
+    }
+
+    private void readRecord(DataInputStream in) throws IOException {
+        int type = in.readByte();
+        String w = in.readUTF();
+        switch (type) {
+            case RECORD_STAGE1:
+                int count = in.readInt();
+                Vector<S1Bigram> bigrams = new Vector<>(count);
+                for (int i = 0; i < count; i++) {
+                    String wi = in.readUTF();
+                    int dCount = in.readInt();
+                    Vector<Integer> distances = new Vector<>(dCount);
+                    for (int j = 0; j < dCount; j++) {
+                        distances.add(in.readInt());
+                    }
+                    bigrams.add(new S1Bigram(w, wi, 0, 0, distances));
+                }
+                stageOne.put(w, bigrams);
+                break;
+            case RECORD_NGRAM:
+                String wi = in.readUTF();
+                int distance = in.readInt();
+                addNgram(w, wi, distance, in.readUTF());
+                break;
+            case RECORD_DONE:
+                donePivots.add(w);
+                break;
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    private void addNgram(String w, String wi, int distance, String ngram) {
+        ngrams.put(key(w, wi, distance), ngram);
+        Vector<String> found = pivotNgrams.get(w);
+        if (found == null) {
+            found = new Vector<>();
+            pivotNgrams.put(w, found);
+        }
+        found.add(ngram);
+    }
+
+    private static String key(String w, String wi, int distance) {
+        return w + "\u0000" + wi + "\u0000" + distance;
+    }
+}
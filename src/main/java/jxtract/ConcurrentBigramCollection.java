@@ -0,0 +1,111 @@
+/*
+ * ConcurrentBigramCollection.java
+ * A class for the JXtract collocation software.
+ */
+package jxtract;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+
+/**
+ * ConcurrentBigramCollection collects the same counts as BigramCollection, but
+ * lets many threads add sentences at once, so the sentences of one frequent
+ * word can be spread over every core.
+ * <p/>
+ * The collocates are kept in a ConcurrentHashMap, each with an
+ * AtomicIntegerArray of its counts at the 10 distances. A bigram's frequency
+ * is the sum of those counts, and the total frequency the sum of all of them,
+ * so neither needs a counter that every thread would contend for.
+ * <p/>
+ * toBigramCollection() turns the counts into an ordinary BigramCollection, so
+ * that Stage 1 and Stage 2 give exactly the results they would have given if
+ * the sentences had been added one at a time.
+ */
+public class ConcurrentBigramCollection {
+
+    private ConcurrentMap<String, AtomicIntegerArray> counts;
+
+    /**
+     * Constructor
+     */
+    public ConcurrentBigramCollection() {
+        counts = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Adds a sentence like BigramCollection.addSentence() does. Safe to call
+     * from many threads at once.
+     *
+     * @param s      The sentence to be added.
+     * @param weight The number of times the sentence occurs.
+     * @throws Exception If given sentence does not contain the word this
+     *                   collection tracks.
+     */
+    public void addSentence(String w, String s, boolean includeClosedClass, int weight) throws Exception {
+        addCleanSentence(w, BigramCollection.removePunctuation(s), includeClosedClass, weight);
+    }
+
+    /**
+     * Adds a sentence that already had its punctuation removed, like
+     * BigramCollection.addCleanSentence() does. Safe to call from many
+     * threads at once.
+     *
+     * @param s      The sentence, as returned by removePunctuation().
+     * @param weight The number of times the sentence occurs.
+     * @throws Exception If given sentence does not contain the word this
+     *                   collection tracks.
+     */
+    void addCleanSentence(String w, String s, boolean includeClosedClass, int weight) throws Exception {
+        String[] words = s.split(" ");
+
+        // Find the last instance of w
+        int wIndex = -1;
+        for (int i = 0; i < words.length; i++) {
+            if (w.equals(words[i])) {
+                wIndex = i;
+            }
+        }
+        if (wIndex < 0) {
+            throw new Exception(
+                    "Could not add sentences: sentence does not contain word \""
+                            + w + "\"\nSentence: " + s);
+        }
+
+        for (int i = Math.max(0, wIndex - 5); (i < words.length) && (i <= wIndex + 5); i++) {
+            if (!w.equals(words[i]) && (includeClosedClass || !BigramCollection.isClosedClass(words[i]))) {
+                AtomicIntegerArray p = counts.get(words[i]);
+                if (p == null) {
+                    AtomicIntegerArray created = new AtomicIntegerArray(10);
+                    p = counts.putIfAbsent(words[i], created);
+                    if (p == null) {
+                        p = created;
+                    }
+                }
+                int offset = i - wIndex;
+                p.addAndGet(offset < 0 ? offset + 5 : offset + 4, weight);
+            }
+        }
+    }
+
+    /**
+     * Copies the counts into a BigramCollection. Should be called once all
+     * threads are done adding sentences.
+     *
+     * @param w The word this collection tracks.
+     * @return The BigramCollection.
+     */
+    public BigramCollection toBigramCollection(String w) {
+        BigramCollection bigrams = new BigramCollection();
+        int[] p = new int[10];
+        for (Map.Entry<String, AtomicIntegerArray> entry : counts.entrySet()) {
+            for (int i = 0; i < 10; i++) {
+                p[i] = entry.getValue().get(i);
+            }
+            bigrams.addCounts(w, entry.getKey(), p);
+        }
+        return bigrams;
+    }
+}
@@ -0,0 +1,557 @@
+/*
+ * CooccurrenceStore.java
+ * A class for the JXtract collocation software.
+ */
+package jxtract;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.*;
+
+
+/**
+ * CooccurrenceStore holds the Stage 1 positional counts (the p values of
+ * Table 2 in the Smadja paper) of many pivots, built in two passes over the
+ * corpus. Stage 1 of any stored pivot then loads one row from the store
+ * instead of scanning the corpus.
+ * <p/>
+ * The file is laid out like a compressed sparse row matrix, and is memory
+ * mapped, so the counts stay off the Java heap and only the rows that are
+ * asked for are paged in. All numbers are big-endian.
+ * <pre>
+ * header       magic, version, corpus length and modification time, counts,
+ *              and the offset of each section below
+ * strings      long[vocabulary + 1], where each word starts in the text
+ * pivots       int[pivots], the word id of each pivot, in increasing order
+ * rows         long[pivots + 1], the first entry of each pivot's row
+ * collocates   int[entries], the word id of each entry
+ * counts       int[entries * 10], the counts at -5..-1 and 1..5 of each entry
+ * text         the words in UTF-8, sorted
+ * </pre>
+ */
+public class CooccurrenceStore implements Closeable {
+
+    private static final int MAGIC = 0x4A584353;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 96;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // Rough heap cost of a cell in the map while building
+    private static final int CELL_SIZE = 128;
+    private static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+    private static final int FAN_IN = 64;
+
+    private MappedFile file;
+    private long corpusLength;
+    private long corpusModified;
+    private int vocabularySize;
+    private int pivotCount;
+    private long stringsOffset;
+    private long pivotsOffset;
+    private long rowsOffset;
+    private long collocatesOffset;
+    private long countsOffset;
+    private long textOffset;
+
+    /**
+     * Open a store built by build().
+     *
+     * @param f The store file.
+     * @throws IOException If the file can not be read or is not a store.
+     */
+    public CooccurrenceStore(File f) throws IOException {
+        file = new MappedFile(f);
+        if (file.size() < HEADER_SIZE || file.getInt(0) != MAGIC || file.getInt(4) != VERSION) {
+            file.close();
+            throw new IOException(f + " is not a co-occurrence store");
+        }
+        corpusLength = file.getLong(8);
+        corpusModified = file.getLong(16);
+        vocabularySize = file.getInt(24);
+        pivotCount = file.getInt(28);
+        stringsOffset = file.getLong(40);
+        pivotsOffset = file.getLong(48);
+        rowsOffset = file.getLong(56);
+        collocatesOffset = file.getLong(64);
+        countsOffset = file.getLong(72);
+        textOffset = file.getLong(80);
+    }
+
+    /**
+     * Checks if the store was built from the corpus file as it is now.
+     *
+     * @param corpusFile The corpus file.
+     * @return <code>false</code> if the corpus changed since the store was
+     * built.
+     */
+    public boolean matches(File corpusFile) {
+        return corpusFile.length() == corpusLength && corpusFile.lastModified() == corpusModified;
+    }
+
+    /**
+     * Returns the Stage 1 collection of a pivot, the same collection that
+     * adding every corpus sentence containing the pivot would give.
+     *
+     * @param w The pivot.
+     * @return The collection, or <code>null</code> if the pivot is not in the
+     * store.
+     */
+    public BigramCollection getStageOneCollection(String w) {
+        int id = findWord(w);
+        if (id < 0) {
+            return null;
+        }
+        int pivot = findPivot(id);
+        if (pivot < 0) {
+            return null;
+        }
+
+        BigramCollection bigrams = new BigramCollection();
+        long rowStart = file.getLong(rowsOffset + 8L * pivot);
+        long rowEnd = file.getLong(rowsOffset + 8L * (pivot + 1));
+        int[] p = new int[10];
+        for (long entry = rowStart; entry < rowEnd; entry++) {
+            String wi = getWord(file.getInt(collocatesOffset + 4 * entry));
+            for (int i = 0; i < 10; i++) {
+                p[i] = file.getInt(countsOffset + 40 * entry + 4 * i);
+            }
+            bigrams.addCounts(w, wi, p);
+        }
+        return bigrams;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Binary search for a word in the sorted vocabulary.
+     *
+     * @return The word id, or -1 if the word is not in the store.
+     */
+    private int findWord(String w) {
+        int low = 0;
+        int high = vocabularySize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = getWord(mid).compareTo(w);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Binary search for a word id in the pivot list.
+     *
+     * @return The row of the pivot, or -1 if the word is not a pivot.
+     */
+    private int findPivot(int id) {
+        int low = 0;
+        int high = pivotCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midId = file.getInt(pivotsOffset + 4L * mid);
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private String getWord(int id) {
+        long start = file.getLong(stringsOffset + 8L * id);
+        long end = file.getLong(stringsOffset + 8L * (id + 1));
+        byte[] bytes = new byte[(int) (end - start)];
+        file.get(textOffset + start, bytes, 0, bytes.length);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Build a store for the given pivots, with the default memory budget.
+     *
+     * @param corpus The corpus.
+     * @param pivots The pivots, in lower case.
+     * @param out    The store file to write.
+     * @throws IOException If the corpus can not be read or the store written.
+     */
+    public static void build(Corpus corpus, Set<String> pivots, File out) throws IOException {
+        build(corpus, pivots, out, DEFAULT_BUDGET);
+    }
+
+    /**
+     * Build a store for the given pivots. Sentences are matched and counted
+     * exactly like getSentencesWith(String) and BigramCollection.addSentence()
+     * do in Stage 1.
+     * <p/>
+     * The matrix can be far larger than the heap, so it is never held whole.
+     * A first pass over the corpus finds the words of the store and numbers
+     * them. A second pass counts (pivot, collocate) cells in a map until its
+     * estimated size passes <code>memoryBudget</code>, then spills the map
+     * to a temporary file as a run sorted by pivot and collocate, and clears
+     * it. The runs are merged, adding up the counts of each cell, straight
+     * into the collocates and counts sections.
+     *
+     * @param corpus       The corpus.
+     * @param pivots       The pivots, in lower case.
+     * @param out          The store file to write.
+     * @param memoryBudget The memory budget of the cell map, in bytes.
+     * @throws IOException If the corpus can not be read or the store written.
+     */
+    public static void build(Corpus corpus, Set<String> pivots, File out, long memoryBudget) throws IOException {
+        // Number every word, in sorted order
+        final TreeSet<String> vocabulary = new TreeSet<>(pivots);
+        scan(corpus, pivots, new CellVisitor() {
+            public void visit(String pivot, String collocate, int position) {
+                vocabulary.add(collocate);
+            }
+        });
+        final String[] words = vocabulary.toArray(new String[vocabulary.size()]);
+        vocabulary.clear();
+        final String[] sortedPivots = new TreeSet<>(pivots).toArray(new String[pivots.size()]);
+
+        final LinkedList<File> runs = new LinkedList<>();
+        File collocatesFile = null;
+        File countsFile = null;
+        try {
+            final CellMap cells = new CellMap(memoryBudget, runs);
+            scan(corpus, pivots, new CellVisitor() {
+                public void visit(String pivot, String collocate, int position) throws IOException {
+                    long key = (long) Arrays.binarySearch(sortedPivots, pivot) << 32
+                            | Arrays.binarySearch(words, collocate);
+                    cells.add(key, position);
+                }
+            });
+            cells.spill();
+
+            // Merge down to few enough runs to open at once
+            while (runs.size() > FAN_IN) {
+                List<File> group = new ArrayList<>();
+                for (int i = 0; i < FAN_IN; i++) {
+                    group.add(runs.removeFirst());
+                }
+                File merged = newTempFile("jxtract-cells");
+                try (DataOutputStream run = openOutput(merged)) {
+                    merge(group, run, null, null, null);
+                }
+                runs.addLast(merged);
+            }
+
+            collocatesFile = newTempFile("jxtract-collocates");
+            countsFile = newTempFile("jxtract-counts");
+            long[] rowSizes = new long[sortedPivots.length];
+            try (DataOutputStream collocates = openOutput(collocatesFile);
+                 DataOutputStream counts = openOutput(countsFile)) {
+                merge(new ArrayList<>(runs), null, collocates, counts, rowSizes);
+            }
+            runs.clear();
+
+            write(words, sortedPivots, rowSizes, collocatesFile, countsFile, corpus.f, out);
+        } finally {
+            for (File run : runs) {
+                run.delete();
+            }
+            if (collocatesFile != null) {
+                collocatesFile.delete();
+            }
+            if (countsFile != null) {
+                countsFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Receives each instance of a collocate around a pivot.
+     */
+    private interface CellVisitor {
+        /**
+         * @param position The index of the count, 0 to 9 for -5..-1 and 1..5.
+         */
+        void visit(String pivot, String collocate, int position) throws IOException;
+    }
+
+    /**
+     * Goes through the corpus once, passing every instance of a collocate
+     * around a pivot that Stage 1 of the pivot would count to the visitor.
+     */
+    private static void scan(Corpus corpus, Set<String> pivots, CellVisitor visitor) throws IOException {
+        if (!corpus.openFile()) {
+            throw new IOException("Could not open " + corpus.filename);
+        }
+        Map<String, Integer> found = new HashMap<>();
+        try {
+            String record;
+            while ((record = corpus.bReader.readLine()) != null) {
+                String[] words = BigramCollection.tokenize(record);
+
+                // addSentence() counts around the last instance of the pivot
+                found.clear();
+                for (int i = 0; i < words.length; i++) {
+                    if (pivots.contains(words[i])) {
+                        found.put(words[i], i);
+                    }
+                }
+
+                for (Map.Entry<String, Integer> pivot : found.entrySet()) {
+                    String w = pivot.getKey();
+                    if (!Corpus.containsWord(record, w)) {
+                        continue;
+                    }
+                    int wIndex = pivot.getValue();
+                    for (int i = Math.max(0, wIndex - 5); (i < words.length) && (i <= wIndex + 5); i++) {
+                        if (!w.equals(words[i]) && !BigramCollection.isClosedClass(words[i])) {
+                            int offset = i - wIndex;
+                            visitor.visit(w, words[i], offset < 0 ? offset + 5 : offset + 4);
+                        }
+                    }
+                }
+            }
+        } finally {
+            corpus.closeFile();
+        }
+    }
+
+    /**
+     * Merges runs of cells into one, adding up the counts of each cell, and
+     * deletes them. The merged cells are written to <code>run</code> if it
+     * is given. Otherwise each collocate id goes to <code>collocates</code>,
+     * its counts to <code>counts</code>, and the cells of each pivot are
+     * counted in <code>rowSizes</code>.
+     */
+    private static void merge(List<File> group, DataOutputStream run, DataOutputStream collocates,
+                              DataOutputStream counts, long[] rowSizes) throws IOException {
+        PriorityQueue<CellRun> queue = new PriorityQueue<>();
+        try {
+            for (File file : group) {
+                CellRun reader = new CellRun(file);
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+
+            int[] p = new int[10];
+            while (!queue.isEmpty()) {
+                long key = queue.peek().key;
+                Arrays.fill(p, 0);
+                while (!queue.isEmpty() && queue.peek().key == key) {
+                    CellRun reader = queue.poll();
+                    for (int i = 0; i < 10; i++) {
+                        p[i] += reader.p[i];
+                    }
+                    if (reader.next()) {
+                        queue.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+
+                if (run != null) {
+                    writeCell(run, key, p);
+                } else {
+                    collocates.writeInt((int) key);
+                    for (int i = 0; i < 10; i++) {
+                        counts.writeInt(p[i]);
+                    }
+                    rowSizes[(int) (key >>> 32)]++;
+                }
+            }
+        } finally {
+            for (CellRun reader : queue) {
+                reader.close();
+            }
+            for (File file : group) {
+                file.delete();
+            }
+        }
+    }
+
+    private static void write(String[] words, String[] pivots, long[] rowSizes, File collocatesFile,
+                              File countsFile, File corpusFile, File out) throws IOException {
+        long entryCount = 0;
+        for (long rowSize : rowSizes) {
+            entryCount += rowSize;
+        }
+
+        long stringsOffset = HEADER_SIZE;
+        long pivotsOffset = stringsOffset + 8L * (words.length + 1);
+        long rowsOffset = align(pivotsOffset + 4L * pivots.length);
+        long collocatesOffset = rowsOffset + 8L * (pivots.length + 1);
+        long countsOffset = align(collocatesOffset + 4 * entryCount);
+        long textOffset = countsOffset + 40 * entryCount;
+
+        try (DataOutputStream data = openOutput(out)) {
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeLong(corpusFile.length());
+            data.writeLong(corpusFile.lastModified());
+            data.writeInt(words.length);
+            data.writeInt(pivots.length);
+            data.writeLong(entryCount);
+            data.writeLong(stringsOffset);
+            data.writeLong(pivotsOffset);
+            data.writeLong(rowsOffset);
+            data.writeLong(collocatesOffset);
+            data.writeLong(countsOffset);
+            data.writeLong(textOffset);
+            pad(data, stringsOffset - 88);
+
+            long textLength = 0;
+            data.writeLong(textLength);
+            for (String word : words) {
+                textLength += word.getBytes(UTF8).length;
+                data.writeLong(textLength);
+            }
+
+            for (String pivot : pivots) {
+                data.writeInt(Arrays.binarySearch(words, pivot));
+            }
+            pad(data, rowsOffset - (pivotsOffset + 4L * pivots.length));
+
+            // Rows are in pivot order, each sorted by collocate
+            long rowStart = 0;
+            data.writeLong(rowStart);
+            for (long rowSize : rowSizes) {
+                rowStart += rowSize;
+                data.writeLong(rowStart);
+            }
+
+            Files.copy(collocatesFile.toPath(), data);
+            pad(data, countsOffset - (collocatesOffset + 4 * entryCount));
+            Files.copy(countsFile.toPath(), data);
+
+            for (String word : words) {
+                data.write(word.getBytes(UTF8));
+            }
+        }
+    }
+
+    /**
+     * Rounds an offset up to a multiple of 8.
+     */
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    private static File newTempFile(String prefix) throws IOException {
+        File file = File.createTempFile(prefix, ".tmp");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static DataOutputStream openOutput(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024));
+    }
+
+    private static void writeCell(DataOutputStream out, long key, int[] p) throws IOException {
+        out.writeLong(key);
+        for (int i = 0; i < 10; i++) {
+            out.writeInt(p[i]);
+        }
+    }
+
+    /**
+     * Writes the given number of zeros.
+     */
+    private static void pad(DataOutputStream data, long count) throws IOException {
+        for (long i = 0; i < count; i++) {
+            data.writeByte(0);
+        }
+    }
+
+    /**
+     * Counts cells in memory, keyed by pivot and collocate, and spills them
+     * to a sorted run when they pass the memory budget.
+     */
+    private static class CellMap {
+        private long budget;
+        private List<File> runs;
+        private Map<Long, int[]> cells;
+
+        CellMap(long budget_, List<File> runs_) {
+            budget = budget_;
+            runs = runs_;
+            cells = new HashMap<>();
+        }
+
+        void add(long key, int position) throws IOException {
+            int[] p = cells.get(key);
+            if (p == null) {
+                p = new int[10];
+                cells.put(key, p);
+            }
+            p[position]++;
+            if ((long) cells.size() * CELL_SIZE > budget) {
+                spill();
+            }
+        }
+
+        /**
+         * Writes the cells to a new run, sorted by key, and clears them.
+         */
+        void spill() throws IOException {
+            File run = newTempFile("jxtract-cells");
+            runs.add(run);
+            long[] keys = new long[cells.size()];
+            int n = 0;
+            for (Long key : cells.keySet()) {
+                keys[n++] = key;
+            }
+            Arrays.sort(keys);
+            try (DataOutputStream out = openOutput(run)) {
+                for (long key : keys) {
+                    writeCell(out, key, cells.get(key));
+                }
+            }
+            cells.clear();
+        }
+    }
+
+    /**
+     * Reads the cells of one run in order.
+     */
+    private static class CellRun implements Comparable<CellRun>, Closeable {
+        DataInputStream in;
+        long key;
+        int[] p = new int[10];
+
+        CellRun(File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 64 * 1024));
+        }
+
+        /**
+         * Reads the next cell.
+         *
+         * @return <code>false</code> at the end of the run.
+         */
+        boolean next() throws IOException {
+            try {
+                key = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            for (int i = 0; i < 10; i++) {
+                p[i] = in.readInt();
+            }
+            return true;
+        }
+
+        public int compareTo(CellRun other) {
+            return Long.compare(key, other.key);
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
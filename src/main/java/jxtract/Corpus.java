@@ -7,6 +7,7 @@
 package jxtract;
 
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.*;
 
 
@@ -17,10 +18,16 @@ import java.util.*;
  */
 public class Corpus {
 
+    // The marks BigramCollection.removePunctuation() removes along with the space before them
+    private static final String PUNCTUATION_BYTES = ".!?,;:-()\"%#";
+
     String filename;
     File f;
-    FileInputStream fis;
-    BufferedReader bReader;
+    LineReader bReader;
+    long rangeStart;
+    long rangeEnd;
+    BlockIndex blockIndex;
+    MappedFile mapped;
 
     /**
      * Constructor for the Corpus.
@@ -31,8 +38,44 @@ public class Corpus {
      */
     public Corpus(String filename_) {
         filename = filename_;
+        rangeStart = 0;
+        rangeEnd = Long.MAX_VALUE;
     } // End constructor
 
+    /**
+     * Limit the corpus to the lines of the file that start in the byte range
+     * <code>[start, end)</code>. Adjacent ranges split the file between them
+     * without any line being in both.
+     *
+     * @param start The first byte of the range.
+     * @param end   The byte after the range.
+     */
+    public void setRange(long start, long end) {
+        rangeStart = start;
+        rangeEnd = end;
+    }
+
+    /**
+     * Use a block index to skip the parts of the file that can not contain
+     * the words a scan looks for. The index is not used on a corpus limited
+     * to a byte range.
+     *
+     * @param index The index of this corpus' file.
+     */
+    public void setBlockIndex(BlockIndex index) {
+        blockIndex = index;
+    }
+
+    /**
+     * Checks if the file is gzip compressed. A compressed file is read like
+     * plain text, but can not be memory mapped or searched with a block index.
+     *
+     * @return <code>true</code> if the file is compressed.
+     */
+    public boolean isCompressed() {
+        return ParallelGzipInputStream.isGzip(new File(filename));
+    }
+
     /**
      * Open the file for reading.
      *
@@ -41,18 +84,13 @@ public class Corpus {
      */
     public boolean openFile() {
         f = null;
-        fis = null;
-        BufferedInputStream bis;
         bReader = null;
 
         boolean retVal = true;
 
         try {
             f = new File(filename);
-            fis = new FileInputStream(f);
-            // Supposed to be faster if a BufferedInputStream is used.
-            bis = new BufferedInputStream(fis);
-            bReader = new BufferedReader(new InputStreamReader(bis));
+            bReader = LineReader.open(f, rangeStart, rangeEnd);
         } catch (IOException e) {
             // Catch IO errors from FileInputStream
             System.out.println("Error opening file: " + e.getMessage());
@@ -83,6 +121,231 @@ public class Corpus {
         return retVal;
     }
 
+    /**
+     * Release the memory mapped file, if getSentenceHandlesWith() mapped it.
+     * Handles to its lines must not be used after this.
+     */
+    public void close() {
+        if (mapped != null) {
+            try {
+                mapped.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+            mapped = null;
+        }
+    }
+
+    /**
+     * Checks if a line contains a word, with spaces or the ends of the line
+     * around it. This is the test getSentencesWith(String) uses.
+     *
+     * @param record The line.
+     * @param word_  The word.
+     * @return <code>true</code> if the line contains the word.
+     */
+    static boolean containsWord(String record, String word_) {
+        return record.contains(" " + word_ + " ") || record.startsWith(word_ + " ") || record.endsWith(" " + word_);
+    }
+
+    /**
+     * Checks if <code>w2</code> is <code>distance</code> words away from any
+     * instance of <code>w1</code>. This is the test
+     * getSentencesWith(String, String, int) uses.
+     *
+     * @param words    The words of a sentence, without punctuation.
+     * @param w1       The first word
+     * @param w2       The second word
+     * @param distance The distance between them.
+     * @return <code>true</code> if the words match.
+     */
+    static boolean containsPair(String[] words, String w1, String w2, int distance) {
+        // Find w1 and see if it's the proper distance from w2
+        // There may be more than one instace of w1, so make sure we
+        // check all of them
+        for (int i = 0; i < words.length; i++) {
+            // Found an instance of w1
+            if (words[i].equals(w1)) {
+                // Distance is not outside of the sentence
+                if (i + distance >= 0 && i + distance < words.length) {
+                    if (words[i + distance].equals(w2)) {
+                        return true;
+                    }
+                }
+            }
+        } // End for
+        return false;
+    }
+
+    /**
+     * Streams the sentences in the Corpus that contain the specified word.
+     * The iterator should be closed if it is not read to the end.
+     *
+     * @param word_ The word that is searched for in the corpus.
+     * @return The sentences, as they are found.
+     */
+    public SentenceIterator sentencesWith(final String word_) {
+        return new SentenceIterator(this, word_) {
+            protected String accept(String record) {
+                return containsWord(record, word_) ? record : null;
+            }
+        };
+    }
+
+    /**
+     * Streams the sentences in the Corpus that contain the specified words,
+     * with <code>w2</code> being <code>distance</code> words away from
+     * <code>w1</code>. The sentences are returned with their punctuation
+     * removed. The iterator should be closed if it is not read to the end.
+     *
+     * @param w1       The first word
+     * @param w2       The second word
+     * @param distance The distance between them. -5 to -1 and 1 to 5 are valid values.
+     * @return The sentences, as they are found.
+     */
+    public SentenceIterator sentencesWith(final String w1, final String w2, final int distance) {
+        return new SentenceIterator(this, w1, w2) {
+            protected String accept(String record) {
+                //	Remove punctuation
+                record = BigramCollection.removePunctuation(record);
+
+                //  Split the sentence up into "words" (characters separated by at least one space)
+                String[] words = record.split(" ");
+
+                return containsPair(words, w1, w2, distance) ? record : null;
+            }
+        };
+    }
+
+    /**
+     * Streams the sentences among <code>candidates</code> that contain the
+     * specified words, with <code>w2</code> being <code>distance</code> words
+     * away from <code>w1</code>, like sentencesWith(String, String, int) does
+     * for the whole corpus. The candidates should include every sentence that
+     * contains <code>w1</code>, as getSentenceHandlesWith() returns them.
+     *
+     * @param candidates The sentences to search.
+     * @param w1         The first word
+     * @param w2         The second word
+     * @param distance   The distance between them. -5 to -1 and 1 to 5 are valid values.
+     * @return The sentences, with their punctuation removed.
+     */
+    public SentenceIterator sentencesWith(Vector<SentenceHandle> candidates, final String w1, final String w2,
+                                          final int distance) {
+        return new SentenceIterator(candidates.iterator()) {
+            protected String accept(String record) {
+                record = BigramCollection.removePunctuation(record);
+                String[] words = record.split(" ");
+                return containsPair(words, w1, w2, distance) ? record : null;
+            }
+        };
+    }
+
+    /**
+     * Finds the lines of the corpus that contain a word once punctuation is
+     * removed, which are all the lines any Stage 2 search for that word can
+     * match. The file is memory mapped, and the lines are kept as handles to
+     * their bytes rather than as Strings, so a word's lines can be searched
+     * many times over without scanning the file again or copying them.
+     *
+     * @param word_ The word.
+     * @return The handles of the lines, or <code>null</code> if the file can
+     * not be mapped, as a compressed file can not.
+     */
+    public Vector<SentenceHandle> getSentenceHandlesWith(String word_) {
+        if (mapped == null && isCompressed()) {
+            return null;
+        }
+        try {
+            if (mapped == null) {
+                mapped = new MappedFile(new File(filename));
+            }
+        } catch (IOException e) {
+            System.out.println("Error mapping file: " + e.getMessage());
+            return null;
+        }
+
+        Vector<SentenceHandle> handles = new Vector<>();
+        byte[] word = word_.getBytes(Charset.defaultCharset());
+        byte[] line = new byte[256];
+        long end = Math.min(rangeEnd, mapped.size());
+        long pos = rangeStart;
+        // A line that starts before the range belongs to the range before it,
+        // so back up one byte and skip to the next line, as LineReader does
+        if (pos > 0 && pos < end) {
+            long terminator = mapped.indexOfLineEnd(pos - 1);
+            pos = terminator < 0 ? end : skipTerminator(terminator);
+        }
+        while (pos < end) {
+            long terminator = mapped.indexOfLineEnd(pos);
+            long next = terminator < 0 ? mapped.size() : skipTerminator(terminator);
+            long length = (terminator < 0 ? mapped.size() : terminator) - pos;
+
+            if (line.length < length) {
+                line = new byte[(int) Math.max(length, 2L * line.length)];
+            }
+            mapped.get(pos, line, 0, (int) length);
+
+            // Only lines that pass the cheap byte test are decoded and split
+            if (mayContain(line, (int) length, word)) {
+                SentenceHandle handle = new SentenceHandle(mapped, pos, (int) length);
+                for (String token : handle.getWords()) {
+                    if (token.equals(word_)) {
+                        handles.add(handle);
+                        break;
+                    }
+                }
+            }
+            pos = next;
+        }
+        return handles;
+    }
+
+    /**
+     * Returns the offset of the line after a line terminator of the mapped
+     * file. Lines end at '\n', '\r' or "\r\n", as they do for LineReader.
+     *
+     * @param terminator The offset of the '\n' or '\r'.
+     * @return The offset of the next line.
+     */
+    private long skipTerminator(long terminator) {
+        if (mapped.getByte(terminator) == '\r' && terminator + 1 < mapped.size()
+                && mapped.getByte(terminator + 1) == '\n') {
+            return terminator + 2;
+        }
+        return terminator + 1;
+    }
+
+    /**
+     * Checks if a line may contain a word once punctuation is removed. That
+     * is the case if the bytes of the word are in the line, or if removing
+     * punctuation joins two pieces of the line (a space and a punctuation
+     * mark are removed from between them), which may form the word.
+     *
+     * @param line   The bytes of the line.
+     * @param length The length of the line.
+     * @param word   The bytes of the word.
+     * @return <code>false</code> if the line definitely lacks the word.
+     */
+    private static boolean mayContain(byte[] line, int length, byte[] word) {
+        for (int i = 0; i < length; i++) {
+            if (line[i] == ' ' && i + 2 < length && line[i + 2] != ' '
+                    && PUNCTUATION_BYTES.indexOf(line[i + 1]) >= 0) {
+                return true;
+            }
+            if (i + word.length <= length) {
+                int j = 0;
+                while (j < word.length && line[i + j] == word[j]) {
+                    j++;
+                }
+                if (j == word.length) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * This returns a Vector of Strings, where each String is a sentence in the
      * Corpus that contains the specified word.
@@ -92,24 +355,10 @@ public class Corpus {
      */
     public Vector<String> getSentencesWith(String word_) {
         Vector<String> foundSentences = new Vector<>();
-        // Open the file on the disk
-        openFile();
-        if (bReader != null) {
-            String record;
-            try {
-                while ((record = bReader.readLine()) != null) {
-                    if (record.contains(" " + word_ + " ") || record.startsWith(word_ + " ") || record.endsWith(" " + word_)) {
-                        foundSentences.add(record);
-                    }
-                }
-            } catch (IOException e) {
-                // Catch IO errors from FileInputStream
-                System.out.println("Error reading file: " + e.getMessage());
-            }
+        for (String record : sentencesWith(word_)) {
+            foundSentences.add(record);
         }
         //DEBUG System.out.println("Found " + foundSentences.size() + " sentences.");
-        // Close the file.  Must be done before the return.
-        closeFile();
         return foundSentences;
     }
 
@@ -125,55 +374,38 @@ public class Corpus {
      */
     public Vector<String> getSentencesWith(String w1, String w2, int distance) {
         Vector<String> foundSentences = new Vector<>();
-        // Open the file on the disk
-        openFile();
-        if (bReader != null) {
-            String record;
-            try {
-                while ((record = bReader.readLine()) != null) {
-                    //	Remove punctuation
-                    record = record.replaceAll(" (\\.|!|\\?|,|;|:|\\-|\\(|\\)|\"|%|#)", "");
-
-                    //  Split the sentence up into "words" (characters separated by at least one space)
-                    String[] words = record.split(" ");
-
-                    // Find w1 and see if it's the proper distance from w2
-                    // There may be more than one instace of w1, so make sure we
-                    // check all of them
-                    boolean addS = false;
-                    for (int i = 0; i < words.length; i++) {
-                        // Found an instance of w1
-                        if (words[i].equals(w1)) {
-                            // Distance is not outside of the sentence
-                            if (i + distance >= 0 && i + distance < words.length) {
-                                if (words[i + distance].equals(w2)) {
-                                    addS = true;
-                                }
-                            }
-                        }
-                    } // End for
-
-                    // If we found a match, add the sentence to the Vector
-                    if (addS) {
-                        foundSentences.add(record);
-                    }
-                }
-            } catch (IOException e) {
-                // Catch IO errors from FileInputStream
-                System.out.println("Error reading file: " + e.getMessage());
-            }
+        for (String record : sentencesWith(w1, w2, distance)) {
+            foundSentences.add(record);
         }
         //DEBUG System.out.println("Found " + foundSentences.size() + " sentences.");
-        // Close the file.  Must be done before the return.
-        closeFile();
         return foundSentences;
     } // End getSentencesWith(String w1, String w2, int distance)
 
     public Vector<String> getFrequentWords(int minFrequency) {
+        return getFrequentWords(minFrequency, 0);
+    }
+
+    /**
+     * This returns a Vector of the words that appear at least
+     * <code>minFrequency</code> times in the Corpus. Punctuation and closed
+     * class words are not counted.
+     *
+     * @param minFrequency The frequency threshold.
+     * @param memoryBudget If more than 0, the words are counted by an
+     *                     ExternalWordCounter with this many bytes of memory,
+     *                     which spills to temporary files when the vocabulary
+     *                     does not fit. The result is the same, but sorted.
+     * @return The Vector of frequent words.
+     */
+    public Vector<String> getFrequentWords(int minFrequency, long memoryBudget) {
         Vector<String> freqWords = new Vector<>();
         // Define a Map and create a HashMap
         Map<String, Integer> map = new HashMap<>();
         final Integer ONE = 1;
+        ExternalWordCounter counter = null;
+        if (memoryBudget > 0) {
+            counter = new ExternalWordCounter(memoryBudget);
+        }
 
         openFile();
         String record;
@@ -196,20 +428,31 @@ public class Corpus {
                             // If not found, add word to map with count one
                             // Otherwise, add to map with old count + 1
 
-                            Integer frequency = map.get(key);
-                            if (frequency == null) {
-                                frequency = ONE;
+                            if (counter != null) {
+                                counter.add(key);
                             } else {
-                                frequency = frequency + 1;
+                                Integer frequency = map.get(key);
+                                if (frequency == null) {
+                                    frequency = ONE;
+                                } else {
+                                    frequency = frequency + 1;
+                                }
+                                map.put(key, frequency);
                             }
-                            map.put(key, frequency);
                         }
                     }
                 }
             }
+            if (counter != null) {
+                freqWords = counter.getFrequentWords(minFrequency);
+            }
         } catch (IOException e) {
             // Catch IO errors from FileInputStream
             System.out.println("Error reading file: " + e.getMessage());
+        } finally {
+            if (counter != null) {
+                counter.close();
+            }
         }
 
         // Pull out the frequent words and add them to freqWords
@@ -0,0 +1,214 @@
+/*
+ * CorpusGenerator.java
+ * A class for the JXtract collocation software.
+ */
+package jxtract;
+
+import java.io.*;
+import java.util.Random;
+import java.util.Vector;
+
+
+/**
+ * CorpusGenerator writes a synthetic corpus for testing how JXtract scales.
+ * Words are drawn from a vocabulary with a Zipf distribution, with the most
+ * frequent ranks taken by closed class words like real English text. Some
+ * known collocations are planted in the sentences, so that a run on the
+ * corpus can be checked for finding them.
+ * <p/>
+ * Sentences are one per line, with tokens separated by spaces and a final
+ * " ." like the Europarl files JXtract was written for.
+ */
+public class CorpusGenerator {
+
+    private static final String[] CLOSED_CLASS = {
+            "the", "of", "and", "to", "a", "in", "that", "is", "for", "it",
+            "on", "we", "this", "be", "are", "with", "as", "by", "not", "have"
+    };
+
+    private static final String[] SYLLABLES = {
+            "ba", "ce", "di", "fo", "gu", "ha", "ke", "li", "mo", "nu",
+            "pa", "re", "si", "to", "vu", "wa", "xe", "yi", "zo", "qu"
+    };
+
+    private int vocabularySize;
+    private double exponent;
+    private double plantRate;
+    private Vector<String[]> planted;
+    private Random random;
+    private double[] cumulative;
+    private String[] vocabulary;
+
+    /**
+     * Constructor
+     *
+     * @param vocabularySize_ The number of distinct words, planted ones not
+     *                        included.
+     * @param exponent_       The exponent of the Zipf distribution. Natural
+     *                        language is close to 1.
+     * @param plantRate_      The chance that a sentence gets each planted
+     *                        collocation.
+     * @param seed            The seed for the random numbers, so a corpus can
+     *                        be generated again.
+     */
+    public CorpusGenerator(int vocabularySize_, double exponent_, double plantRate_, long seed) {
+        vocabularySize = vocabularySize_;
+        exponent = exponent_;
+        plantRate = plantRate_;
+        planted = new Vector<>();
+        random = new Random(seed);
+
+        vocabulary = new String[vocabularySize];
+        cumulative = new double[vocabularySize];
+        double total = 0;
+        for (int rank = 0; rank < vocabularySize; rank++) {
+            vocabulary[rank] = rank < CLOSED_CLASS.length ? CLOSED_CLASS[rank] : makeWord(rank);
+            total += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = total;
+        }
+        for (int rank = 0; rank < vocabularySize; rank++) {
+            cumulative[rank] /= total;
+        }
+    }
+
+    /**
+     * Add a collocation to plant in the corpus. Its words should not be
+     * made of the generator's syllables, so that they only appear where
+     * they are planted.
+     *
+     * @param phrase The words of the collocation, separated by spaces.
+     */
+    public void plant(String phrase) {
+        planted.add(phrase.split(" "));
+    }
+
+    /**
+     * Write sentences until the output has at least the given size.
+     *
+     * @param out   Where to write the corpus.
+     * @param bytes The size of the corpus.
+     * @throws IOException If writing fails.
+     */
+    public void generate(Writer out, long bytes) throws IOException {
+        StringBuilder sentence = new StringBuilder();
+        Vector<String> words = new Vector<>();
+        long written = 0;
+
+        while (written < bytes) {
+            words.clear();
+            int length = 10 + random.nextInt(21);
+            for (int i = 0; i < length; i++) {
+                words.add(nextWord());
+            }
+
+            // Plant each collocation at a random place in the sentence
+            for (String[] phrase : planted) {
+                if (random.nextDouble() < plantRate) {
+                    int at = random.nextInt(words.size() + 1);
+                    for (int i = phrase.length - 1; i >= 0; i--) {
+                        words.add(at, phrase[i]);
+                    }
+                }
+            }
+
+            sentence.setLength(0);
+            for (String word : words) {
+                sentence.append(word).append(' ');
+            }
+            sentence.append(".\n");
+            out.write(sentence.toString());
+            written += sentence.length();
+        }
+    }
+
+    /**
+     * Returns a word drawn from the Zipf distribution.
+     */
+    private String nextWord() {
+        double x = random.nextDouble();
+        int low = 0;
+        int high = vocabularySize - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cumulative[mid] < x) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return vocabulary[low];
+    }
+
+    /**
+     * Makes a distinct word for a rank by writing it in base 20 with a
+     * syllable per digit.
+     */
+    private static String makeWord(int rank) {
+        StringBuilder word = new StringBuilder();
+        int n = rank;
+        do {
+            word.append(SYLLABLES[n % SYLLABLES.length]);
+            n /= SYLLABLES.length;
+        } while (n > 0);
+        return word.toString();
+    }
+
+    private static void showHelp() {
+        System.out.println("CorpusGenerator: writes a synthetic corpus with a Zipf distributed vocabulary");
+        System.out.println("Usage: CorpusGenerator -out filename -size megabytes [-vocabulary words] [-exponent s]");
+        System.out.println("                       [-plant phrase]... [-plantrate rate] [-seed seed]");
+        System.out.println("Example: CorpusGenerator -out zipf-100.txt -size 100 -plant \"european central bank\"");
+    }
+
+    public static void main(String[] args) {
+        String out = "";
+        long size = 0;
+        int vocabularySize = 50000;
+        double exponent = 1.0;
+        double plantRate = 0.01;
+        long seed = 1;
+        Vector<String> phrases = new Vector<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-out":
+                    out = args[i + 1];
+                    break;
+                case "-size":
+                    size = Long.parseLong(args[i + 1]) * 1024 * 1024;
+                    break;
+                case "-vocabulary":
+                    vocabularySize = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-exponent":
+                    exponent = Double.parseDouble(args[i + 1]);
+                    break;
+                case "-plant":
+                    phrases.add(args[i + 1]);
+                    break;
+                case "-plantrate":
+                    plantRate = Double.parseDouble(args[i + 1]);
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(args[i + 1]);
+                    break;
+            }
+        }
+
+        if (out.equals("") || size <= 0) {
+            showHelp();
+            System.exit(0);
+        }
+
+        CorpusGenerator generator = new CorpusGenerator(vocabularySize, exponent, plantRate, seed);
+        for (String phrase : phrases) {
+            generator.plant(phrase);
+        }
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out)), 1024 * 1024)) {
+            generator.generate(writer, size);
+        } catch (IOException e) {
+            System.out.println("Error writing corpus: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
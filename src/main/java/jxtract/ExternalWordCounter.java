@@ -0,0 +1,240 @@
+/*
+ * ExternalWordCounter.java
+ * A class for the JXtract collocation software.
+ */
+package jxtract;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+
+/**
+ * ExternalWordCounter counts words exactly within a fixed memory budget, for
+ * vocabularies too large to count in one in-memory map. Words are counted in
+ * a map until its estimated size passes the budget. The map is then sorted and
+ * spilled to a temporary file as a run, and cleared. At the end the runs are
+ * merged, k at a time, adding up the counts of each word.
+ */
+public class ExternalWordCounter implements Closeable {
+
+    // Rough heap cost of a map entry, not counting the characters of the word
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int FAN_IN = 64;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private long budget;
+    private long used;
+    private Map<String, Integer> map;
+    private LinkedList<File> runs;
+
+    /**
+     * Constructor
+     *
+     * @param budget_ The memory budget of the in-memory map, in bytes.
+     */
+    public ExternalWordCounter(long budget_) {
+        budget = budget_;
+        used = 0;
+        map = new HashMap<>();
+        runs = new LinkedList<>();
+    }
+
+    /**
+     * Count one instance of a word.
+     *
+     * @param word The word.
+     * @throws IOException If a run can not be spilled.
+     */
+    public void add(String word) throws IOException {
+        Integer frequency = map.get(word);
+        if (frequency == null) {
+            map.put(word, 1);
+            used += ENTRY_OVERHEAD + 2 * word.length();
+            if (used > budget) {
+                spill();
+            }
+        } else {
+            map.put(word, frequency + 1);
+        }
+    }
+
+    /**
+     * Returns the words counted at least <code>minFrequency</code> times, in
+     * sorted order.
+     *
+     * @param minFrequency The frequency threshold.
+     * @return The words.
+     * @throws IOException If the runs can not be merged.
+     */
+    public Vector<String> getFrequentWords(int minFrequency) throws IOException {
+        Vector<String> freqWords = new Vector<>();
+        if (runs.isEmpty()) {
+            for (String word : sortedWords()) {
+                if (map.get(word) >= minFrequency) {
+                    freqWords.add(word);
+                }
+            }
+            return freqWords;
+        }
+
+        spill();
+        // Merge down to few enough runs to open at once
+        while (runs.size() > FAN_IN) {
+            List<File> group = new ArrayList<>();
+            for (int i = 0; i < FAN_IN; i++) {
+                group.add(runs.removeFirst());
+            }
+            File merged = newRun();
+            try (DataOutputStream out = openOutput(merged)) {
+                merge(group, out, 0, null);
+            }
+            runs.addLast(merged);
+        }
+        merge(runs, null, minFrequency, freqWords);
+        return freqWords;
+    }
+
+    /**
+     * Deletes the runs.
+     */
+    public void close() {
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    /**
+     * Writes the map to a new run, sorted by word, and clears it.
+     */
+    private void spill() throws IOException {
+        File run = newRun();
+        try (DataOutputStream out = openOutput(run)) {
+            for (String word : sortedWords()) {
+                writeEntry(out, word, map.get(word));
+            }
+        }
+        runs.addLast(run);
+        map.clear();
+        used = 0;
+    }
+
+    /**
+     * Returns the words of the map in sorted order. They are sorted as an
+     * array, which costs a reference per word, where a sorted copy of the
+     * map would cost another entry per word just as the map is full.
+     */
+    private String[] sortedWords() {
+        String[] words = map.keySet().toArray(new String[map.size()]);
+        Arrays.sort(words);
+        return words;
+    }
+
+    /**
+     * Merges runs into one, adding up the counts of each word, and deletes
+     * them. The merged entries are written to <code>out</code> if it is
+     * given, and otherwise the words counted at least
+     * <code>minFrequency</code> times are added to <code>freqWords</code>.
+     */
+    private static void merge(List<File> group, DataOutputStream out, int minFrequency, Vector<String> freqWords)
+            throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>();
+        try {
+            for (File run : group) {
+                RunReader reader = new RunReader(run);
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+
+            while (!queue.isEmpty()) {
+                String word = queue.peek().word;
+                long frequency = 0;
+                while (!queue.isEmpty() && queue.peek().word.equals(word)) {
+                    RunReader reader = queue.poll();
+                    frequency += reader.count;
+                    if (reader.next()) {
+                        queue.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+
+                int count = (int) Math.min(frequency, Integer.MAX_VALUE);
+                if (out != null) {
+                    writeEntry(out, word, count);
+                } else if (count >= minFrequency) {
+                    freqWords.add(word);
+                }
+            }
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+            for (File run : group) {
+                run.delete();
+            }
+        }
+    }
+
+    private static File newRun() throws IOException {
+        File run = File.createTempFile("jxtract-run", ".tmp");
+        run.deleteOnExit();
+        return run;
+    }
+
+    private static DataOutputStream openOutput(File run) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 256 * 1024));
+    }
+
+    private static void writeEntry(DataOutputStream out, String word, int count) throws IOException {
+        // Not writeUTF(), which is limited to 64 KB
+        byte[] bytes = word.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeInt(count);
+    }
+
+    /**
+     * Reads the entries of one run in order.
+     */
+    private static class RunReader implements Comparable<RunReader>, Closeable {
+        DataInputStream in;
+        String word;
+        int count;
+
+        RunReader(File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 64 * 1024));
+        }
+
+        /**
+         * Reads the next entry.
+         *
+         * @return <code>false</code> at the end of the run.
+         */
+        boolean next() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            word = new String(bytes, UTF8);
+            count = in.readInt();
+            return true;
+        }
+
+        public int compareTo(RunReader other) {
+            return word.compareTo(other.word);
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -11,7 +11,19 @@
 
 package jxtract;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -20,22 +32,59 @@ import java.util.Vector;
 
 public class JXtract {
 
+    // Sentences per task when adding sentences on several threads
+    private static final int BATCH_SIZE = 1024;
+    // Batches that can wait for a thread before reading stops
+    private static final int MAX_PENDING_BATCHES = 64;
+
     private Corpus corpus;
+    private Checkpoint checkpoint;
+    private CooccurrenceStore store;
+    private ShardRunner shardRunner;
+    private ExecutorService executor;
+    private Set<String> pendingPivots;
+    private Map<String, Map<String, String>> reversedNgrams;
+    private boolean allWords;
+    private boolean dedup;
     private boolean getFrequencies;
+    private boolean resume;
     private boolean showHelp;
+    private int checkpointInterval;
+    private int countBudget;
     private int minFrequency;
+    private int shards;
+    private int threads;
     private String sourcefilename;
+    private String stateDir;
+    private String storeFilename;
+    private boolean buildStore;
+    private boolean useBlockIndex;
+    private boolean useMmap;
     private String word;
 
     /**
      * Constructor
      */
     public JXtract() {
+        allWords = false;
+        dedup = false;
         getFrequencies = false;
+        resume = false;
+        checkpointInterval = 30;
+        countBudget = 0;
         minFrequency = 1000;
+        shards = 1;
+        threads = 1;
         showHelp = false;
         sourcefilename = "";
+        stateDir = "";
+        storeFilename = "";
+        buildStore = false;
+        useBlockIndex = false;
+        useMmap = false;
         word = "";
+        pendingPivots = new HashSet<>();
+        reversedNgrams = new HashMap<>();
     }
 
     public static void main(String[] args) {
@@ -50,15 +99,97 @@ public class JXtract {
     private static void showHelp() {
         System.out.println("JXtract: a collocation extractor");
         System.out.println("Usage: JXtract -source filename [-printfrequencies [-minfrequency frequency]] [-word word]");
+        System.out.println("       JXtract -source filename -allwords [-minfrequency frequency] [-statedir dir [-resume]]");
+        System.out.println("       JXtract -source filename -buildstore filename [-minfrequency frequency]");
         System.out.println("Example: JXtract -source ep-00-en.txt -word European");
         System.out.println("");
         System.out.println("Arguments:");
-        System.out.println("-source\t\t\tThe corpus file.  Must be English language.");
+        System.out.println("-source\t\t\tThe corpus file.  Must be English language.  May be gzip compressed");
         System.out.println("-word\t\t\tThe word that will be used to search for collocations");
         System.out.println("-printfrequencies\t(Optional) An alternate mode to finding collocations.  JXtract can also be used to");
         System.out.println("\t\t\tfind the most frequent words in a file");
         System.out.println("-minfrequency\t\t(Optional)If JXtract is used to get word frequencies, this determines the lower");
         System.out.println("\t\t\tfrequency threshold, below which less frequently appearing words will not be reported");
+        System.out.println("-countbudget\t\t(Optional) Megabytes of memory for counting word frequencies, and for building a");
+        System.out.println("\t\t\tstore.  Counts that do not fit are spilled to temporary files and merged");
+        System.out.println("-allwords\t\t(Optional) Find collocations for every word that passes -minfrequency");
+        System.out.println("-statedir\t\t(Optional) A directory where progress is checkpointed, so that a run can be resumed");
+        System.out.println("-resume\t\t\t(Optional) Continue the run checkpointed in -statedir, skipping finished work");
+        System.out.println("-checkpointinterval\t(Optional) Seconds between checkpoint flushes to disk.  Defaults to 30");
+        System.out.println("-shards\t\t\t(Optional) Split the corpus between this many processes and merge their results");
+        System.out.println("-buildstore\t\tWrite the Stage 1 counts of every word that passes -minfrequency to a store file");
+        System.out.println("-store\t\t\t(Optional) A store file written by -buildstore, used instead of scanning the corpus in Stage 1");
+        System.out.println("-threads\t\t(Optional) Add the sentences of each word on this many threads");
+        System.out.println("-dedup\t\t\t(Optional) Process repeated sentences once, weighted by how often they occur");
+        System.out.println("-blockindex\t\t(Optional) Skip the parts of the corpus that can not match, using an index file next to");
+        System.out.println("\t\t\tthe corpus.  The index is built, or rebuilt if the corpus changed, when needed");
+        System.out.println("-mmap\t\t\t(Optional) Memory map the corpus and find each word's sentences once for all of its");
+        System.out.println("\t\t\tStage 2 searches, keeping them as offsets into the file");
+    }
+
+    /**
+     * getAllCollocations()
+     * Runs getCollocations() on each pivot in turn. If a state directory
+     * was given, progress is checkpointed there, and when resuming, the
+     * pivots finished by the earlier run are skipped.
+     *
+     * @param pivots The pivots, or <code>null</code> if they should be the
+     *               frequent words of the corpus.
+     */
+    private void getAllCollocations(Vector<String> pivots) {
+        // A resumed run must ask for the same pivots as the run it continues
+        String pivotWord = pivots == null ? "" : word;
+        if (!stateDir.equals("")) {
+            checkpoint = new Checkpoint(stateDir, checkpointInterval * 1000L);
+            try {
+                if (resume) {
+                    checkpoint.load(sourcefilename, minFrequency, pivotWord);
+                    if (checkpoint.getPivots() != null) {
+                        pivots = checkpoint.getPivots();
+                    }
+                } else {
+                    checkpoint.reset();
+                }
+            } catch (IOException e) {
+                System.out.println("Error opening checkpoint: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (pivots == null) {
+            pivots = corpus.getFrequentWords(minFrequency, countBudget * 1024L * 1024L);
+        }
+
+        try {
+            if (shards > 1) {
+                shardRunner = new ShardRunner(sourcefilename, shards, dedup);
+            }
+            if (threads > 1) {
+                executor = Executors.newFixedThreadPool(threads);
+            }
+            if (checkpoint != null && checkpoint.getPivots() == null) {
+                checkpoint.savePivots(sourcefilename, minFrequency, pivotWord, pivots);
+            }
+            for (String pivot : pivots) {
+                pendingPivots.add(pivot.toLowerCase());
+            }
+            for (String pivot : pivots) {
+                getCollocations(pivot);
+            }
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Error finding collocations: " + e.getMessage());
+            System.exit(1);
+        } finally {
+            if (shardRunner != null) {
+                shardRunner.close();
+            }
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
     }
 
     /**
@@ -66,60 +197,417 @@ public class JXtract {
      * This runs the Xtract algorithm on a word and corpus and
      * returns the labelled collocations for that word.
      */
-    private void getCollocations(String w) {
+    private void getCollocations(String w) throws IOException {
         System.out.println("Finding collocations containing the word " + w);
         w = w.toLowerCase();
-        Vector<String> foundSentences = corpus.getSentencesWith(w);
+        pendingPivots.remove(w);
+        Map<String, String> reversed = reversedNgrams.remove(w);
 
-        BigramCollection bigrams = new BigramCollection();
-        try {
-            for (String foundSentence : foundSentences) {
-                //System.out.println("Found sentence: " + foundSentences.get(i));
-                bigrams.addSentence(w, foundSentence, false);
+        // Everything for this word was done by an earlier run
+        if (checkpoint != null && checkpoint.isDone(w)) {
+            for (String ngram : checkpoint.getNgrams(w)) {
+                System.out.println(ngram);
             }
+            return;
+        }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+        Vector<S1Bigram> postStage1 = null;
+        if (checkpoint != null) {
+            postStage1 = checkpoint.getStageOne(w);
+        }
+        if (postStage1 == null) {
+            BigramCollection bigrams = null;
+            if (store != null) {
+                bigrams = store.getStageOneCollection(w);
+            }
+            if (bigrams == null && shardRunner != null) {
+                bigrams = shardRunner.collectStageOne(w);
+            } else if (bigrams == null) {
+                bigrams = collectStageOne(corpus, w, dedup, executor);
+            }
+            //System.out.println("\n" + bigrams.getTable4());
+            postStage1 = bigrams.getStageOneBigrams(1, 1, 10);
+            if (checkpoint != null) {
+                checkpoint.recordStageOne(w, postStage1);
+            }
+        }
+
+        // With shards, all of the Stage 2 collections are built in one round
+        Vector<BigramCollection> sharded = null;
+        int shardedIndex = 0;
+        if (shardRunner != null) {
+            Vector<String> collocates = new Vector<>();
+            Vector<Integer> distances = new Vector<>();
+            for (S1Bigram aPostStage1 : postStage1) {
+                for (Integer distance : aPostStage1.getDistances()) {
+                    // The n-grams that are checkpointed or were found with an
+                    // earlier pivot are not built again, so are not collected
+                    if ((checkpoint == null || checkpoint.getNgram(w, aPostStage1.getwi(), distance) == null)
+                            && (reversed == null || !reversed.containsKey(aPostStage1.getwi() + " " + distance))) {
+                        collocates.add(aPostStage1.getwi());
+                        distances.add(distance);
+                    }
+                }
+            }
+            sharded = shardRunner.collectStageTwo(w, collocates, distances);
+        }
+
+        // With -mmap, the Stage 2 searches all look through the sentences
+        // with w, found in one scan
+        Vector<SentenceHandle> candidates = null;
+        if (sharded == null && useMmap && hasPendingNgrams(w, postStage1, reversed)) {
+            candidates = corpus.getSentenceHandlesWith(w);
         }
-        //System.out.println("\n" + bigrams.getTable4());
-        Vector<S1Bigram> postStage1 = bigrams.getStageOneBigrams(1, 1, 10);
 
         //DEBUG System.out.println("w\twi\tstrength\t\tspread\tdistance");
         for (S1Bigram aPostStage1 : postStage1) {
             for (int j = 0; j < aPostStage1.getDistances().size(); j++) {
                 //DEBUG System.out.println(aPostStage1.getw() + "\t" + aPostStage1.getwi() + "\t" + aPostStage1.getStrength() + "\t" + aPostStage1.getSpread() + "\t" + aPostStage1.getDistances().get(j));
-                Vector<String> stage2sentences = corpus.getSentencesWith(
-                        aPostStage1.getw(),
-                        aPostStage1.getwi(),
-                        aPostStage1.getDistances().get(j)
-                );
-                BigramCollection s2bigrams = new BigramCollection();
-
-                // Add all sentences with this bigram to a collection
-                try {
-                    for (String stage2sentence : stage2sentences) {
-                        //System.out.println("Found sentence: " + stage2sentences.get(k));
-                        s2bigrams.addSentence(w, stage2sentence, true);
+                int distance = aPostStage1.getDistances().get(j);
+                if (checkpoint != null) {
+                    String ngram = checkpoint.getNgram(aPostStage1.getw(), aPostStage1.getwi(), distance);
+                    if (ngram != null) {
+                        System.out.println(ngram);
+                        continue;
+                    }
+                }
+
+                String wi = aPostStage1.getwi();
+                String ngram = reversed == null ? null : reversed.get(wi + " " + distance);
+                if (ngram == null) {
+                    BigramCollection s2bigrams;
+                    if (sharded != null) {
+                        s2bigrams = sharded.get(shardedIndex++);
+                    } else {
+                        // The sentences where wi is distance words from w are the
+                        // ones where w is -distance words from wi, so if wi is a
+                        // pivot still to come, its Stage 2 collection for w is
+                        // built from them too
+                        String[] anchors = pendingPivots.contains(wi) ? new String[]{w, wi} : new String[]{w};
+                        SentenceIterator sentences = candidates != null
+                                ? corpus.sentencesWith(candidates, w, wi, distance)
+                                : corpus.sentencesWith(w, wi, distance);
+                        BigramCollection[] collections = collect(sentences, anchors, true, dedup, executor);
+                        s2bigrams = collections[0];
+                        if (anchors.length > 1) {
+                            saveReversedNgram(wi, w, -distance, collections[1].getStageTwoNgram(0.75));
+                        }
                     }
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    //System.out.println("\n" + s2bigrams.getTable2());
+                    //System.out.println("^-- " + aPostStage1.getw() + " " + aPostStage1.getwi());
+                    ngram = s2bigrams.getStageTwoNgram(0.75);
+                }
+                System.out.println(ngram);
+                if (checkpoint != null) {
+                    checkpoint.recordNgram(aPostStage1.getw(), aPostStage1.getwi(), distance, ngram);
                 }
-                //System.out.println("\n" + s2bigrams.getTable2());
-                //System.out.println("^-- " + aPostStage1.getw() + " " + aPostStage1.getwi());
-                s2bigrams.stage2(0.75);
                 //System.out.println(" ");
             }
 
         }
 
+        if (checkpoint != null) {
+            checkpoint.recordDone(w);
+        }
     } // End getCollocations()
 
+    /**
+     * Checks if any Stage 2 n-gram of a word is still to be found, rather
+     * than in the checkpoint or among the n-grams found from the other side.
+     */
+    private boolean hasPendingNgrams(String w, Vector<S1Bigram> postStage1, Map<String, String> reversed) {
+        for (S1Bigram aPostStage1 : postStage1) {
+            for (Integer distance : aPostStage1.getDistances()) {
+                if ((checkpoint == null || checkpoint.getNgram(w, aPostStage1.getwi(), distance) == null)
+                        && (reversed == null || !reversed.containsKey(aPostStage1.getwi() + " " + distance))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Keeps the Stage 2 n-gram of a pivot that is still to come, found while
+     * working on another pivot, until the pivot's own turn.
+     */
+    private void saveReversedNgram(String w, String wi, int distance, String ngram) {
+        Map<String, String> ngrams = reversedNgrams.get(w);
+        if (ngrams == null) {
+            ngrams = new HashMap<>();
+            reversedNgrams.put(w, ngrams);
+        }
+        ngrams.put(wi + " " + distance, ngram);
+    }
+
+    /**
+     * buildStore()
+     * Writes a co-occurrence store with the Stage 1 counts of every frequent
+     * word, so that later runs can skip the Stage 1 corpus scan.
+     */
+    private void buildStore() {
+        Set<String> pivots = new HashSet<>();
+        for (String pivot : corpus.getFrequentWords(minFrequency, countBudget * 1024L * 1024L)) {
+            pivots.add(pivot.toLowerCase());
+        }
+        try {
+            if (countBudget > 0) {
+                CooccurrenceStore.build(corpus, pivots, new File(storeFilename), countBudget * 1024L * 1024L);
+            } else {
+                CooccurrenceStore.build(corpus, pivots, new File(storeFilename));
+            }
+        } catch (IOException e) {
+            System.out.println("Error building store: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * openStore()
+     * Opens the co-occurrence store, unless the corpus changed after the
+     * store was built.
+     */
+    private void openStore() {
+        try {
+            store = new CooccurrenceStore(new File(storeFilename));
+            if (!store.matches(new File(sourcefilename))) {
+                System.out.println("Store " + storeFilename + " is out of date, scanning the corpus instead");
+                store.close();
+                store = null;
+            }
+        } catch (IOException e) {
+            System.out.println("Error opening store: " + e.getMessage());
+            store = null;
+        }
+    }
+
+    /**
+     * Builds the Stage 1 collection for a word from the sentences of the
+     * corpus that contain it. Closed class words are left out.
+     *
+     * @param corpus   The corpus.
+     * @param w        The word.
+     * @param dedup    Whether to add each distinct sentence only once.
+     * @param executor The threads to add the sentences with, or
+     *                 <code>null</code> to add them on this thread.
+     * @return The collection.
+     */
+    static BigramCollection collectStageOne(Corpus corpus, String w, boolean dedup, ExecutorService executor) {
+        return collect(corpus.sentencesWith(w), w, false, dedup, executor);
+    }
+
+    /**
+     * Builds the Stage 2 collection for a bigram from the sentences of the
+     * corpus where <code>wi</code> is <code>distance</code> words away from
+     * <code>w</code>.
+     *
+     * @param corpus   The corpus.
+     * @param w        The word.
+     * @param wi       The collocate.
+     * @param distance The distance of the collocate from the word.
+     * @param dedup    Whether to add each distinct sentence only once.
+     * @param executor The threads to add the sentences with, or
+     *                 <code>null</code> to add them on this thread.
+     * @return The collection.
+     */
+    static BigramCollection collectStageTwo(Corpus corpus, String w, String wi, int distance, boolean dedup,
+                                            ExecutorService executor) {
+        return collect(corpus.sentencesWith(w, wi, distance), w, true, dedup, executor);
+    }
+
+    private static BigramCollection collect(SentenceIterator sentences, String w, boolean includeClosedClass,
+                                            boolean dedup, ExecutorService executor) {
+        return collect(sentences, new String[]{w}, includeClosedClass, dedup, executor)[0];
+    }
+
+    /**
+     * Adds sentences to a new collection for each of the given words, reading
+     * them once, as they are found. Every sentence must contain every word.
+     * With <code>dedup</code>, sentences that are the same once punctuation
+     * is removed are counted first, and each distinct one is added once,
+     * weighted by its count. With an executor, the sentences are added in
+     * batches by its threads to a ConcurrentBigramCollection. The counts are
+     * the same either way. The sentences are closed when done, even if adding
+     * them fails. Sentences that can not be added are skipped, and reported
+     * once for the whole scan.
+     */
+    private static BigramCollection[] collect(SentenceIterator sentences, String[] ws, boolean includeClosedClass,
+                                              boolean dedup, ExecutorService executor) {
+        RejectedSentences rejected = new RejectedSentences();
+        try {
+            Map<String, Integer> counts = null;
+            if (dedup) {
+                counts = new HashMap<>();
+                for (String sentence : sentences) {
+                    String key = BigramCollection.removePunctuation(sentence);
+                    Integer count = counts.get(key);
+                    counts.put(key, count == null ? 1 : count + 1);
+                }
+            }
+
+            if (executor == null) {
+                BigramCollection[] bigrams = new BigramCollection[ws.length];
+                for (int i = 0; i < ws.length; i++) {
+                    bigrams[i] = new BigramCollection();
+                }
+                if (dedup) {
+                    for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                        for (int i = 0; i < ws.length; i++) {
+                            try {
+                                bigrams[i].addCleanSentence(ws[i], entry.getKey(), includeClosedClass, entry.getValue());
+                            } catch (Exception e) {
+                                rejected.add(e);
+                            }
+                        }
+                    }
+                } else {
+                    for (String sentence : sentences) {
+                        for (int i = 0; i < ws.length; i++) {
+                            try {
+                                //System.out.println("Found sentence: " + sentence);
+                                bigrams[i].addSentence(ws[i], sentence, includeClosedClass);
+                            } catch (Exception e) {
+                                rejected.add(e);
+                            }
+                        }
+                    }
+                }
+                return bigrams;
+            }
+
+            ConcurrentBigramCollection[] concurrent = new ConcurrentBigramCollection[ws.length];
+            for (int i = 0; i < ws.length; i++) {
+                concurrent[i] = new ConcurrentBigramCollection();
+            }
+            LinkedList<Future<?>> pending = new LinkedList<>();
+            SentenceBatch batch = new SentenceBatch(concurrent, ws, includeClosedClass, dedup, rejected);
+            Iterator<Map.Entry<String, Integer>> entries = dedup ? counts.entrySet().iterator() : null;
+            while (dedup ? entries.hasNext() : sentences.hasNext()) {
+                if (dedup) {
+                    Map.Entry<String, Integer> entry = entries.next();
+                    batch.add(entry.getKey(), entry.getValue());
+                } else {
+                    batch.add(sentences.next(), 1);
+                }
+
+                if (batch.size() == BATCH_SIZE) {
+                    // Don't read further ahead of the threads than a few batches
+                    if (pending.size() == MAX_PENDING_BATCHES) {
+                        waitFor(pending.removeFirst());
+                    }
+                    pending.add(executor.submit(batch));
+                    batch = new SentenceBatch(concurrent, ws, includeClosedClass, dedup, rejected);
+                }
+            }
+            pending.add(executor.submit(batch));
+            for (Future<?> future : pending) {
+                waitFor(future);
+            }
+            BigramCollection[] bigrams = new BigramCollection[ws.length];
+            for (int i = 0; i < ws.length; i++) {
+                bigrams[i] = concurrent[i].toBigramCollection(ws[i]);
+            }
+            return bigrams;
+        } finally {
+            sentences.close();
+            rejected.report();
+        }
+    }
+
+    private static void waitFor(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A batch of sentences for a thread to add to ConcurrentBigramCollections,
+     * one for each word.
+     */
+    private static class SentenceBatch implements Runnable {
+        private ConcurrentBigramCollection[] bigrams;
+        private String[] ws;
+        private boolean includeClosedClass;
+        private boolean clean;
+        private RejectedSentences rejected;
+        private Vector<String> sentences;
+        private Vector<Integer> weights;
+
+        /**
+         * Constructor
+         *
+         * @param clean_ Whether the sentences already had their punctuation
+         *               removed.
+         */
+        SentenceBatch(ConcurrentBigramCollection[] bigrams_, String[] ws_, boolean includeClosedClass_,
+                      boolean clean_, RejectedSentences rejected_) {
+            bigrams = bigrams_;
+            ws = ws_;
+            includeClosedClass = includeClosedClass_;
+            clean = clean_;
+            rejected = rejected_;
+            sentences = new Vector<>(BATCH_SIZE);
+            weights = new Vector<>(BATCH_SIZE);
+        }
+
+        void add(String sentence, int weight) {
+            sentences.add(sentence);
+            weights.add(weight);
+        }
+
+        int size() {
+            return sentences.size();
+        }
+
+        public void run() {
+            for (int i = 0; i < sentences.size(); i++) {
+                for (int j = 0; j < ws.length; j++) {
+                    try {
+                        if (clean) {
+                            bigrams[j].addCleanSentence(ws[j], sentences.get(i), includeClosedClass, weights.get(i));
+                        } else {
+                            bigrams[j].addSentence(ws[j], sentences.get(i), includeClosedClass, weights.get(i));
+                        }
+                    } catch (Exception e) {
+                        rejected.add(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the sentences a scan could not add, so that they are reported
+     * once when the scan is done rather than once each. Safe to use from
+     * many threads.
+     */
+    private static class RejectedSentences {
+        private int count;
+        private Exception first;
+
+        synchronized void add(Exception e) {
+            if (first == null) {
+                first = e;
+            }
+            count++;
+        }
+
+        synchronized void report() {
+            if (count > 0) {
+                System.err.println("Skipped " + count + " sentences that could not be added. The first: "
+                        + first.getMessage());
+            }
+        }
+    }
+
     /**
      * printFrequentWords
      * Print frequent words in the corpus
      */
     private void printFrequentWords(int freq) {
-        Vector<String> words = corpus.getFrequentWords(freq);
+        Vector<String> words = corpus.getFrequentWords(freq, countBudget * 1024L * 1024L);
         for (String word1 : words) {
             System.out.println(word1);
         }
@@ -145,6 +633,43 @@ public class JXtract {
                 case "-word":
                     word = args[i + 1];
                     break;
+                case "-countbudget":
+                    countBudget = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-allwords":
+                    allWords = true;
+                    break;
+                case "-statedir":
+                    stateDir = args[i + 1];
+                    break;
+                case "-resume":
+                    resume = true;
+                    break;
+                case "-buildstore":
+                    buildStore = true;
+                    storeFilename = args[i + 1];
+                    break;
+                case "-store":
+                    storeFilename = args[i + 1];
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-dedup":
+                    dedup = true;
+                    break;
+                case "-blockindex":
+                    useBlockIndex = true;
+                    break;
+                case "-mmap":
+                    useMmap = true;
+                    break;
+                case "-shards":
+                    shards = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-checkpointinterval":
+                    checkpointInterval = Integer.parseInt(args[i + 1]);
+                    break;
                 case "-h":
                 case "-help":
                 case "--help":
@@ -158,16 +683,43 @@ public class JXtract {
             System.exit(0);
         }
 
+        if (resume && stateDir.equals("")) {
+            System.out.println("-resume needs the -statedir of the run to resume");
+            System.exit(1);
+        }
+
         // Make sure source is given
         if (!sourcefilename.equals("")) {
             corpus = new Corpus(sourcefilename);
+            if (useMmap && corpus.isCompressed()) {
+                System.out.println("A compressed corpus can not be memory mapped, scanning it instead");
+                useMmap = false;
+            }
+            if (useBlockIndex) {
+                try {
+                    corpus.setBlockIndex(BlockIndex.open(new File(sourcefilename)));
+                } catch (IOException e) {
+                    System.out.println("Error opening block index: " + e.getMessage());
+                }
+            }
 
             // Either get word frequencies or find collocations
+            if (!buildStore && !storeFilename.equals("")) {
+                openStore();
+            }
+
             if (getFrequencies) {
                 printFrequentWords(minFrequency);
+            } else if (buildStore) {
+                buildStore();
+            } else if (allWords) {
+                getAllCollocations(null);
             } else if (!word.equals("")) {
-                getCollocations(word);
+                Vector<String> pivots = new Vector<>();
+                pivots.add(word);
+                getAllCollocations(pivots);
             }
+            corpus.close();
 
         } else {
             showHelp();
@@ -0,0 +1,251 @@
+/*
+ * LineReader.java
+ * A class for the JXtract collocation software.
+ */
+package jxtract;
+
+import java.io.*;
+import java.nio.charset.Charset;
+
+
+/**
+ * LineReader reads the lines of a corpus file like a BufferedReader, but
+ * keeps track of the byte offset of each line in the file, and can be limited
+ * to the lines that start inside a byte range. This lets several readers
+ * split one file between them without any line being read twice or skipped.
+ * <p/>
+ * Lines end at '\n', '\r' or "\r\n", as they do for BufferedReader. Lines are
+ * decoded with the platform's default charset, like InputStreamReader does.
+ * <p/>
+ * A gzip compressed file is decompressed as it is read, and its offsets are
+ * those of the decompressed text.
+ */
+public class LineReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private InputStream in;
+    private Charset charset;
+    private byte[] buffer;
+    private int pos;
+    private int limit;
+    private long bufferOffset;
+    private long end;
+    private long lineOffset;
+    private byte[] lineBuffer;
+
+    /**
+     * Constructor
+     *
+     * @param in_    The stream to read. Its first byte is taken to be at
+     *               <code>offset</code> in the file.
+     * @param offset The file offset the stream starts at.
+     * @param end_   Only lines that start before this offset are read.
+     */
+    public LineReader(InputStream in_, long offset, long end_) {
+        in = in_;
+        charset = Charset.defaultCharset();
+        buffer = new byte[BUFFER_SIZE];
+        pos = 0;
+        limit = 0;
+        bufferOffset = offset;
+        end = end_;
+        lineOffset = -1;
+        lineBuffer = new byte[256];
+    }
+
+    /**
+     * Open a file and read the lines that start in <code>[start, end)</code>.
+     * If <code>start</code> falls inside a line, that line is left to the
+     * reader of the range before it. A gzip compressed file is decompressed
+     * from the start up to the range, or for a BGZF file, from the member
+     * the range starts in.
+     *
+     * @param f     The file.
+     * @param start The first byte of the range.
+     * @param end   The byte after the range.
+     * @return The reader.
+     * @throws IOException If the file can not be opened.
+     */
+    public static LineReader open(File f, long start, long end) throws IOException {
+        if (ParallelGzipInputStream.isGzip(f)) {
+            long[] member = start > 0 ? ParallelGzipInputStream.findMember(f, start - 1) : new long[]{0, 0};
+            ParallelGzipInputStream gzip = new ParallelGzipInputStream(f, member[0]);
+            LineReader reader = new LineReader(gzip, member[1], end);
+            if (start > 0) {
+                try {
+                    // Back up one byte, so that a line starting exactly at start is kept
+                    reader.skip(start - 1 - member[1]);
+                    reader.skipLine();
+                } catch (IOException e) {
+                    gzip.close();
+                    throw e;
+                }
+            }
+            return reader;
+        }
+
+        FileInputStream fis = new FileInputStream(f);
+        if (start <= 0) {
+            return new LineReader(fis, 0, end);
+        }
+        try {
+            // Back up one byte, so that a line starting exactly at start is kept
+            fis.getChannel().position(start - 1);
+            LineReader reader = new LineReader(fis, start - 1, end);
+            reader.skipLine();
+            return reader;
+        } catch (IOException e) {
+            fis.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the next line.
+     *
+     * @return The line without its terminator, or <code>null</code> at the end
+     * of the file or range.
+     * @throws IOException If the file can not be read.
+     */
+    public String readLine() throws IOException {
+        int length = readLineBytes();
+        if (length < 0) {
+            return null;
+        }
+        return new String(lineBuffer, 0, length, charset);
+    }
+
+    /**
+     * Returns the byte offset in the file of the line last returned by
+     * readLine().
+     *
+     * @return The offset.
+     */
+    public long getLineOffset() {
+        return lineOffset;
+    }
+
+    /**
+     * Returns the byte offset in the file of the next line to be read.
+     *
+     * @return The offset.
+     */
+    public long getOffset() {
+        return bufferOffset + pos;
+    }
+
+    /**
+     * Move the reader to the start of a line in the file, and limit it to
+     * the lines that start before <code>end_</code>. Only works on a reader
+     * of a file.
+     *
+     * @param offset The offset of a line in the file.
+     * @param end_   Only lines that start before this offset are read.
+     * @throws IOException If the reader is not reading a file.
+     */
+    public void seek(long offset, long end_) throws IOException {
+        if (!(in instanceof FileInputStream)) {
+            throw new IOException("Can only seek in a file");
+        }
+        if (offset < bufferOffset || offset > bufferOffset + limit) {
+            ((FileInputStream) in).getChannel().position(offset);
+            bufferOffset = offset;
+            limit = 0;
+        }
+        pos = (int) (offset - bufferOffset);
+        end = end_;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Reads the bytes of the next line into lineBuffer.
+     *
+     * @return The length of the line, or -1 at the end of the file or range.
+     */
+    private int readLineBytes() throws IOException {
+        if (getOffset() >= end || (pos == limit && !fill())) {
+            return -1;
+        }
+        lineOffset = getOffset();
+
+        int length = 0;
+        while (true) {
+            int start = pos;
+            while (pos < limit && buffer[pos] != '\n' && buffer[pos] != '\r') {
+                pos++;
+            }
+            int chunk = pos - start;
+            if (length + chunk > lineBuffer.length) {
+                byte[] bigger = new byte[Math.max(lineBuffer.length * 2, length + chunk)];
+                System.arraycopy(lineBuffer, 0, bigger, 0, length);
+                lineBuffer = bigger;
+            }
+            System.arraycopy(buffer, start, lineBuffer, length, chunk);
+            length += chunk;
+
+            if (pos < limit) {
+                skipTerminator();
+                break;
+            }
+            if (!fill()) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Skips the line terminator at pos, taking a '\n' after a '\r' with it,
+     * so that the offset is that of the next line.
+     */
+    private void skipTerminator() throws IOException {
+        if (buffer[pos++] == '\r' && (pos < limit || fill()) && buffer[pos] == '\n') {
+            pos++;
+        }
+    }
+
+    /**
+     * Skips the given number of bytes, or to the end of the file.
+     */
+    private void skip(long count) throws IOException {
+        while (count > 0 && (pos < limit || fill())) {
+            int chunk = (int) Math.min(count, limit - pos);
+            pos += chunk;
+            count -= chunk;
+        }
+    }
+
+    /**
+     * Skips to just after the next line terminator.
+     */
+    private void skipLine() throws IOException {
+        while (pos < limit || fill()) {
+            if (buffer[pos] == '\n' || buffer[pos] == '\r') {
+                skipTerminator();
+                return;
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * Refills the buffer.
+     *
+     * @return <code>false</code> if there is nothing left to read.
+     */
+    private boolean fill() throws IOException {
+        bufferOffset += limit;
+        pos = 0;
+        limit = 0;
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        limit = read;
+        return true;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * MappedFile.java
+ * A class for the JXtract collocation software.
+ */
+package jxtract;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * MappedFile maps a whole file into memory, read only. A single mapping can
+ * not be larger than 2 GB, so the file is mapped in segments and read by its
+ * long offset. The data stays in the page cache, off the Java heap.
+ */
+public class MappedFile implements Closeable {
+
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    private RandomAccessFile file;
+    private MappedByteBuffer[] segments;
+    private long size;
+
+    /**
+     * Constructor
+     *
+     * @param f The file to map.
+     * @throws IOException If the file can not be opened or mapped.
+     */
+    public MappedFile(File f) throws IOException {
+        file = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            size = channel.size();
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the size of the file in bytes.
+     *
+     * @return The size.
+     */
+    public long size() {
+        return size;
+    }
+
+    public byte getByte(long pos) {
+        return segments[(int) (pos >>> SEGMENT_BITS)].get((int) (pos & (SEGMENT_SIZE - 1)));
+    }
+
+    /**
+     * Reads a big-endian int. The offset should be a multiple of 4, so that
+     * the int does not cross segments.
+     */
+    public int getInt(long pos) {
+        return segments[(int) (pos >>> SEGMENT_BITS)].getInt((int) (pos & (SEGMENT_SIZE - 1)));
+    }
+
+    /**
+     * Reads a big-endian long. The offset should be a multiple of 8, so that
+     * the long does not cross segments.
+     */
+    public long getLong(long pos) {
+        return segments[(int) (pos >>> SEGMENT_BITS)].getLong((int) (pos & (SEGMENT_SIZE - 1)));
+    }
+
+    /**
+     * Finds the next line terminator, a '\n' or a '\r'.
+     *
+     * @param from The offset to start looking at.
+     * @return The offset of the terminator, or -1 if there is none.
+     */
+    public long indexOfLineEnd(long from) {
+        int start = (int) (from & (SEGMENT_SIZE - 1));
+        for (int i = (int) (from >>> SEGMENT_BITS); i < segments.length; i++) {
+            MappedByteBuffer segment = segments[i];
+            int limit = segment.limit();
+            for (int j = start; j < limit; j++) {
+                byte b = segment.get(j);
+                if (b == '\n' || b == '\r') {
+                    return ((long) i << SEGMENT_BITS) + j;
+                }
+            }
+            start = 0;
+        }
+        return -1;
+    }
+
+    /**
+     * Copies bytes from the file, which may cross segments.
+     *
+     * @param pos    The offset in the file.
+     * @param dst    Where to copy the bytes.
+     * @param off    The offset in <code>dst</code>.
+     * @param length The number of bytes.
+     */
+    public void get(long pos, byte[] dst, int off, int length) {
+        while (length > 0) {
+            ByteBuffer segment = segments[(int) (pos >>> SEGMENT_BITS)].duplicate();
+            int inSegment = (int) (pos & (SEGMENT_SIZE - 1));
+            int chunk = Math.min(length, segment.limit() - inSegment);
+            segment.position(inSegment);
+            segment.get(dst, off, chunk);
+            pos += chunk;
+            off += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Closes the file. The mapping itself is released when it is garbage
+     * collected.
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+}
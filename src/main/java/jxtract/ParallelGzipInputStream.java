@@ -0,0 +1,384 @@
+/*
+ * ParallelGzipInputStream.java
+ * A class for the JXtract collocation software.
+ */
+package jxtract;
+
+import java.io.*;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+
+/**
+ * ParallelGzipInputStream reads a gzip compressed corpus file, decompressing
+ * ahead of the reader on other threads so that scans do not wait for it.
+ * <p/>
+ * A BGZF file (gzip members of at most 64 KB, each with its compressed size
+ * in an extra header field, as written by bgzip) is split into its members
+ * without decompressing them, and the members are decompressed in parallel,
+ * several at a time, then returned in order. Any other gzip file, including
+ * one of several members, has to be decompressed from the start to find where
+ * each member ends, so it is decompressed by one background thread, a chunk
+ * at a time.
+ * <p/>
+ * A BGZF file can also be read from any of its members, which lets a reader
+ * of a range of the text start decompressing near the range instead of at
+ * the start of the file. findMember() finds the member to start at.
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int HEADER_SIZE = 12;
+
+    private InputStream file;
+    private ExecutorService inflaters;
+    private LinkedList<Future<byte[]>> ahead;
+    private int maxAhead;
+    private boolean bgzf;
+    private boolean eof;
+    private byte[] buffer;
+    private int pos;
+
+    /**
+     * Constructor
+     *
+     * @param f The compressed file.
+     * @throws IOException If the file can not be opened or is not gzip.
+     */
+    public ParallelGzipInputStream(File f) throws IOException {
+        this(f, 0);
+    }
+
+    /**
+     * Constructor. Starts reading at a member of a BGZF file.
+     *
+     * @param f           The compressed file.
+     * @param memberStart The offset in the file of the member to start at,
+     *                    from findMember(). Must be 0 if the file is not BGZF.
+     * @throws IOException If the file can not be opened or is not gzip.
+     */
+    public ParallelGzipInputStream(File f, long memberStart) throws IOException {
+        bgzf = isBgzf(f);
+        int threads = bgzf ? Runtime.getRuntime().availableProcessors() : 1;
+        if (bgzf) {
+            FileInputStream fis = new FileInputStream(f);
+            fis.getChannel().position(memberStart);
+            file = new DataInputStream(new BufferedInputStream(fis, 256 * 1024));
+        } else if (memberStart != 0) {
+            throw new IOException("Only a BGZF file can be read from a member");
+        } else {
+            file = new GZIPInputStream(new FileInputStream(f), 64 * 1024);
+        }
+        inflaters = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "jxtract-inflater");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        ahead = new LinkedList<>();
+        maxAhead = bgzf ? 4 * threads : 4;
+        eof = false;
+        buffer = new byte[0];
+        pos = 0;
+    }
+
+    /**
+     * Checks if a file starts with the gzip magic number.
+     *
+     * @param f The file.
+     * @return <code>true</code> if the file is gzip compressed.
+     */
+    public static boolean isGzip(File f) {
+        try (InputStream in = new FileInputStream(f)) {
+            return in.read() == 0x1f && in.read() == 0x8b;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return buffer[pos++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, buffer.length - pos);
+        System.arraycopy(buffer, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    public void close() throws IOException {
+        for (Future<byte[]> future : ahead) {
+            future.cancel(true);
+        }
+        ahead.clear();
+        inflaters.shutdownNow();
+        file.close();
+    }
+
+    /**
+     * Moves on to the next decompressed block if the current one has been
+     * read, keeping the inflaters a few blocks ahead.
+     *
+     * @return <code>false</code> at the end of the file.
+     */
+    private boolean fill() throws IOException {
+        while (pos == buffer.length) {
+            while (!eof && ahead.size() < maxAhead) {
+                Callable<byte[]> task = bgzf ? nextMember() : nextChunk();
+                if (task == null) {
+                    eof = true;
+                } else {
+                    ahead.add(inflaters.submit(task));
+                }
+            }
+            if (ahead.isEmpty()) {
+                return false;
+            }
+            try {
+                buffer = ahead.removeFirst().get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while decompressing");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+            pos = 0;
+            // The inflater of a stream that is not BGZF finds its end
+            if (buffer == null) {
+                buffer = new byte[0];
+                eof = true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the next member of a BGZF file, to be decompressed by a task.
+     *
+     * @return The task, or <code>null</code> at the end of the file.
+     */
+    private Callable<byte[]> nextMember() throws IOException {
+        DataInputStream in = (DataInputStream) file;
+        final byte[] header = new byte[HEADER_SIZE];
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        header[0] = (byte) first;
+        in.readFully(header, 1, HEADER_SIZE - 1);
+        int extraLength = (header[10] & 0xff) | (header[11] & 0xff) << 8;
+        byte[] extra = new byte[extraLength];
+        in.readFully(extra);
+        int blockSize = getBlockSize(header, extra);
+        final int dataLength = blockSize - HEADER_SIZE - extraLength - 8;
+        if (blockSize < 0 || dataLength < 0) {
+            throw new IOException("Not a BGZF block");
+        }
+        final byte[] data = new byte[dataLength + 8];
+        in.readFully(data);
+
+        return new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                int crc = readInt(data, dataLength);
+                byte[] out = new byte[readInt(data, dataLength + 4)];
+                Inflater inflater = new Inflater(true);
+                try {
+                    inflater.setInput(data, 0, dataLength);
+                    int n = 0;
+                    while (n < out.length && !inflater.finished()) {
+                        int inflated = inflater.inflate(out, n, out.length - n);
+                        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        n += inflated;
+                    }
+                    if (n != out.length) {
+                        throw new IOException("Corrupt BGZF block");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt BGZF block: " + e.getMessage());
+                } finally {
+                    inflater.end();
+                }
+                CRC32 check = new CRC32();
+                check.update(out);
+                if ((int) check.getValue() != crc) {
+                    throw new IOException("CRC error in BGZF block");
+                }
+                return out;
+            }
+        };
+    }
+
+    /**
+     * Returns a task that decompresses the next chunk of a gzip file that is
+     * not BGZF. The tasks run one after another on one thread, so each one
+     * reads on from where the last stopped.
+     *
+     * @return The task, returning <code>null</code> at the end of the file.
+     */
+    private Callable<byte[]> nextChunk() {
+        final InputStream in = file;
+        return new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                int n = 0;
+                int read;
+                while (n < chunk.length && (read = in.read(chunk, n, chunk.length - n)) > 0) {
+                    n += read;
+                }
+                if (n == 0) {
+                    return null;
+                }
+                if (n < chunk.length) {
+                    byte[] shorter = new byte[n];
+                    System.arraycopy(chunk, 0, shorter, 0, n);
+                    return shorter;
+                }
+                return chunk;
+            }
+        };
+    }
+
+    /**
+     * Returns the length of the decompressed text of a gzip file. The members
+     * of a BGZF file give their lengths in their trailers, so only their
+     * headers and trailers are read. Any other file is decompressed once.
+     *
+     * @param f The compressed file.
+     * @return The length.
+     * @throws IOException If the file can not be read.
+     */
+    public static long getUncompressedLength(File f) throws IOException {
+        if (isBgzf(f)) {
+            return walkMembers(f, Long.MAX_VALUE)[1];
+        }
+        long length = 0;
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new GZIPInputStream(new FileInputStream(f), 64 * 1024)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                length += read;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Finds the member of a BGZF file that holds a byte of the decompressed
+     * text, to start reading at. A file that is not BGZF can only be read
+     * from the start.
+     *
+     * @param f      The compressed file.
+     * @param offset The offset of the byte in the decompressed text.
+     * @return The offset of the member in the file and the offset of its
+     * first byte in the decompressed text, or two zeros if the file is not
+     * BGZF.
+     * @throws IOException If the file can not be read.
+     */
+    public static long[] findMember(File f, long offset) throws IOException {
+        if (!isBgzf(f)) {
+            return new long[]{0, 0};
+        }
+        return walkMembers(f, offset);
+    }
+
+    /**
+     * Goes through the members of a BGZF file by their headers, without
+     * decompressing them, until the member that holds <code>offset</code>.
+     *
+     * @return The offset of that member in the file and of its first byte in
+     * the decompressed text, or the lengths of the file and of the text if
+     * the offset is past the end.
+     */
+    private static long[] walkMembers(File f, long offset) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            long fileLength = raf.length();
+            long member = 0;
+            long text = 0;
+            byte[] header = new byte[HEADER_SIZE];
+            byte[] trailer = new byte[4];
+            while (member < fileLength) {
+                raf.seek(member);
+                raf.readFully(header);
+                byte[] extra = new byte[(header[10] & 0xff) | (header[11] & 0xff) << 8];
+                raf.readFully(extra);
+                int blockSize = getBlockSize(header, extra);
+                if (blockSize < HEADER_SIZE + extra.length + 8) {
+                    throw new IOException("Not a BGZF block");
+                }
+                raf.seek(member + blockSize - 4);
+                raf.readFully(trailer);
+                long length = readInt(trailer, 0) & 0xffffffffL;
+                if (offset < text + length) {
+                    break;
+                }
+                member += blockSize;
+                text += length;
+            }
+            return new long[]{member, text};
+        }
+    }
+
+    /**
+     * Checks if a file is BGZF by the header of its first member.
+     */
+    private static boolean isBgzf(File f) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            byte[] header = new byte[HEADER_SIZE];
+            in.readFully(header);
+            if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b) {
+                throw new IOException(f + " is not gzip compressed");
+            }
+            byte[] extra = new byte[(header[10] & 0xff) | (header[11] & 0xff) << 8];
+            in.readFully(extra);
+            return getBlockSize(header, extra) >= 0;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Finds the size of a BGZF member in the BC field of its gzip header.
+     *
+     * @return The size of the whole member, or -1 if it is not a BGZF member.
+     */
+    private static int getBlockSize(byte[] header, byte[] extra) {
+        // FEXTRA must be set
+        if ((header[3] & 0x04) == 0) {
+            return -1;
+        }
+        // The extra field is a list of subfields: two ID bytes, a length, data
+        int i = 0;
+        while (i + 4 <= extra.length) {
+            int length = (extra[i + 2] & 0xff) | (extra[i + 3] & 0xff) << 8;
+            if (extra[i] == 'B' && extra[i + 1] == 'C' && length == 2 && i + 6 <= extra.length) {
+                return ((extra[i + 4] & 0xff) | (extra[i + 5] & 0xff) << 8) + 1;
+            }
+            i += 4 + length;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a little-endian int, as gzip stores its numbers.
+     */
+    private static int readInt(byte[] b, int at) {
+        return (b[at] & 0xff) | (b[at + 1] & 0xff) << 8 | (b[at + 2] & 0xff) << 16 | (b[at + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * SentenceHandle.java
+ * A class for the JXtract collocation software.
+ */
+package jxtract;
+
+import java.nio.charset.Charset;
+
+
+/**
+ * SentenceHandle refers to one line of a memory mapped corpus file by its
+ * byte offset and length, instead of holding a copy of its text. A handle
+ * takes a few dozen bytes however long the sentence is, so millions of them
+ * can be kept, and the text is only decoded from the mapped bytes when it is
+ * asked for.
+ */
+public class SentenceHandle {
+
+    private MappedFile file;
+    private long offset;
+    private int length;
+
+    /**
+     * Constructor
+     *
+     * @param file_   The mapped corpus file.
+     * @param offset_ The offset of the line in the file.
+     * @param length_ The length of the line in bytes, without its terminator.
+     */
+    public SentenceHandle(MappedFile file_, long offset_, int length_) {
+        file = file_;
+        offset = offset_;
+        length = length_;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Decodes the sentence from the file, with the platform's default
+     * charset like LineReader.
+     *
+     * @return The text of the sentence.
+     */
+    public String getText() {
+        byte[] bytes = new byte[length];
+        file.get(offset, bytes, 0, length);
+        return new String(bytes, Charset.defaultCharset());
+    }
+
+    /**
+     * Decodes the sentence and splits it up into words the way
+     * BigramCollection.addSentence() does.
+     *
+     * @return The words of the sentence, without punctuation.
+     */
+    public String[] getWords() {
+        return BigramCollection.tokenize(getText());
+    }
+}
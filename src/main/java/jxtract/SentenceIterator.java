@@ -0,0 +1,165 @@
+/*
+ * SentenceIterator.java
+ * A class for the JXtract collocation software.
+ */
+package jxtract;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ * SentenceIterator streams the sentences of a corpus that match a search,
+ * reading the file only as far as the sentences are asked for, so that a
+ * scan takes the same small amount of memory however many sentences match.
+ * <p/>
+ * The file is closed when the last sentence has been returned. A caller that
+ * stops early must call close(), best in a finally block. An iterator can be
+ * used once in a for-each loop.
+ * <p/>
+ * An iterator can also read its sentences from SentenceHandles, searching
+ * lines that were found before instead of the file.
+ */
+public abstract class SentenceIterator implements Iterator<String>, Iterable<String>, Closeable {
+
+    private LineReader reader;
+    private Iterator<SentenceHandle> handles;
+    private BlockIndex blockIndex;
+    private int[] blockBits;
+    private int nextBlock;
+    private String next;
+
+    /**
+     * Constructor. Opens the corpus file.
+     *
+     * @param corpus The corpus to search.
+     * @param words  The words every matching sentence contains, used to skip
+     *               blocks if the corpus has a block index.
+     */
+    protected SentenceIterator(Corpus corpus, String... words) {
+        File f = new File(corpus.filename);
+        boolean useIndex = corpus.blockIndex != null && corpus.rangeStart == 0 && corpus.rangeEnd == Long.MAX_VALUE;
+        for (String word : words) {
+            useIndex = useIndex && BlockIndex.canIndex(word);
+        }
+
+        try {
+            if (useIndex) {
+                // Nothing is read until readLine() seeks to the first block
+                reader = LineReader.open(f, 0, 0);
+                blockIndex = corpus.blockIndex;
+                blockBits = BlockIndex.getBits(words);
+                nextBlock = 0;
+            } else {
+                reader = LineReader.open(f, corpus.rangeStart, corpus.rangeEnd);
+            }
+        } catch (IOException e) {
+            // Catch IO errors from FileInputStream
+            System.out.println("Error opening file: " + e.getMessage());
+            reader = null;
+        }
+    }
+
+    /**
+     * Constructor. Searches the given lines instead of the corpus file.
+     *
+     * @param handles_ The lines to search.
+     */
+    protected SentenceIterator(Iterator<SentenceHandle> handles_) {
+        handles = handles_;
+    }
+
+    /**
+     * Checks if a line of the corpus matches the search.
+     *
+     * @param record The line.
+     * @return The sentence to return for the line, or <code>null</code> if it
+     * does not match.
+     */
+    protected abstract String accept(String record);
+
+    public boolean hasNext() {
+        while (next == null && (reader != null || handles != null)) {
+            try {
+                String record = readLine();
+                if (record == null) {
+                    close();
+                } else {
+                    next = accept(record);
+                }
+            } catch (IOException e) {
+                // Catch IO errors from FileInputStream
+                System.out.println("Error reading file: " + e.getMessage());
+                close();
+            }
+        }
+        return next != null;
+    }
+
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String sentence = next;
+        next = null;
+        return sentence;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    public Iterator<String> iterator() {
+        return this;
+    }
+
+    /**
+     * Close the file. Safe to call more than once.
+     */
+    public void close() {
+        handles = null;
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+            reader = null;
+        }
+    }
+
+    /**
+     * Reads the next line, skipping the blocks the block index rules out.
+     *
+     * @return The line, or <code>null</code> at the end of the file.
+     * @throws IOException If the file can not be read.
+     */
+    private String readLine() throws IOException {
+        if (handles != null) {
+            return handles.hasNext() ? handles.next().getText() : null;
+        }
+        String record = reader.readLine();
+        if (blockBits == null) {
+            return record;
+        }
+        while (record == null) {
+            // Find the next run of blocks that may match
+            int block = nextBlock;
+            while (block < blockIndex.size() && !blockIndex.mayContain(block, blockBits)) {
+                block++;
+            }
+            if (block >= blockIndex.size()) {
+                return null;
+            }
+            int runEnd = block + 1;
+            while (runEnd < blockIndex.size() && blockIndex.mayContain(runEnd, blockBits)) {
+                runEnd++;
+            }
+            nextBlock = runEnd;
+            reader.seek(blockIndex.getStart(block), blockIndex.getEnd(runEnd - 1));
+            record = reader.readLine();
+        }
+        return record;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * ShardRunner.java
+ * A class for the JXtract collocation software.
+ */
+package jxtract;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Vector;
+
+
+/**
+ * ShardRunner splits the corpus file into byte ranges ("shards") and builds
+ * the BigramCollections for Stage 1 and Stage 2 by running one process per
+ * shard, then merging what the processes return. Since merging is exact, the
+ * merged collections are the same as the ones a single process would build.
+ * <p/>
+ * The main method of this class is the process that works on one shard. It
+ * reads a file of tasks and writes one serialized BigramCollection per task.
+ */
+public class ShardRunner implements Closeable {
+
+    private static final int TASK_STAGE1 = 1;
+    private static final int TASK_STAGE2 = 2;
+
+    private String source;
+    private long length;
+    private int shards;
+    private boolean dedup;
+    private File workDir;
+    private int round;
+
+    /**
+     * Constructor
+     *
+     * @param source_ The corpus file.
+     * @param shards_ The number of processes to split the corpus between.
+     * @param dedup_  Whether the processes add each distinct sentence once.
+     * @throws IOException If the work directory can not be created, or a
+     *                     compressed corpus can not be read.
+     */
+    public ShardRunner(String source_, int shards_, boolean dedup_) throws IOException {
+        source = source_;
+        // Shards are byte ranges of the decompressed text, not of a compressed file
+        File f = new File(source);
+        length = ParallelGzipInputStream.isGzip(f) ? ParallelGzipInputStream.getUncompressedLength(f) : f.length();
+        shards = shards_;
+        dedup = dedup_;
+        workDir = Files.createTempDirectory("jxtract-shards").toFile();
+        round = 0;
+    }
+
+    /**
+     * Builds the Stage 1 collection for a word over the whole corpus.
+     *
+     * @param w The word.
+     * @return The merged collection.
+     * @throws IOException If a shard process fails.
+     */
+    public BigramCollection collectStageOne(String w) throws IOException {
+        Vector<String> collocates = new Vector<>();
+        collocates.add("");
+        Vector<Integer> distances = new Vector<>();
+        distances.add(0);
+        return run(TASK_STAGE1, w, collocates, distances).get(0);
+    }
+
+    /**
+     * Builds the Stage 2 collections for several collocates of a word over
+     * the whole corpus, all in one round of shard processes.
+     *
+     * @param w          The word.
+     * @param collocates The collocates.
+     * @param distances  The distance of each collocate.
+     * @return The merged collections, in the same order as the collocates.
+     * @throws IOException If a shard process fails.
+     */
+    public Vector<BigramCollection> collectStageTwo(String w, Vector<String> collocates, Vector<Integer> distances)
+            throws IOException {
+        return run(TASK_STAGE2, w, collocates, distances);
+    }
+
+    /**
+     * Deletes the work directory.
+     */
+    public void close() {
+        File[] files = workDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        workDir.delete();
+    }
+
+    private Vector<BigramCollection> run(int type, String w, Vector<String> collocates, Vector<Integer> distances)
+            throws IOException {
+        // Don't start processes that have nothing to do
+        if (collocates.isEmpty()) {
+            return new Vector<>();
+        }
+        round++;
+        File taskFile = new File(workDir, "tasks-" + round);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(taskFile)))) {
+            out.writeInt(collocates.size());
+            for (int i = 0; i < collocates.size(); i++) {
+                out.writeByte(type);
+                out.writeUTF(w);
+                out.writeUTF(collocates.get(i));
+                out.writeInt(distances.get(i));
+            }
+        }
+
+        // Start one process per shard
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process[] processes = new Process[shards];
+        File[] outFiles = new File[shards];
+        Vector<BigramCollection> merged = new Vector<>();
+        boolean finished = false;
+        try {
+            for (int i = 0; i < shards; i++) {
+                outFiles[i] = new File(workDir, "out-" + round + "-" + i);
+                ProcessBuilder builder = new ProcessBuilder(
+                        java, "-cp", System.getProperty("java.class.path"), ShardRunner.class.getName(),
+                        source,
+                        Long.toString(length * i / shards),
+                        Long.toString(i == shards - 1 ? Long.MAX_VALUE : length * (i + 1) / shards),
+                        taskFile.getPath(),
+                        outFiles[i].getPath(),
+                        Boolean.toString(dedup));
+                builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+                builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+                processes[i] = builder.start();
+            }
+
+            for (int i = 0; i < collocates.size(); i++) {
+                merged.add(new BigramCollection());
+            }
+            for (int i = 0; i < shards; i++) {
+                try {
+                    if (processes[i].waitFor() != 0) {
+                        throw new IOException("Shard " + i + " failed");
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while waiting for shard " + i);
+                }
+                try (DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(outFiles[i])))) {
+                    for (BigramCollection collection : merged) {
+                        collection.merge(BigramCollection.read(in));
+                    }
+                }
+                outFiles[i].delete();
+            }
+            finished = true;
+        } finally {
+            // Don't leave shards running, and writing to the work directory,
+            // after one of them failed
+            if (!finished) {
+                stopAll(processes);
+            }
+        }
+        taskFile.delete();
+        return merged;
+    }
+
+    /**
+     * Kills the shard processes and waits for them to exit, so that none is
+     * still writing to the work directory when it is deleted.
+     */
+    private static void stopAll(Process[] processes) {
+        for (Process process : processes) {
+            if (process != null) {
+                process.destroy();
+            }
+        }
+        boolean interrupted = false;
+        for (Process process : processes) {
+            boolean exited = process == null;
+            while (!exited) {
+                try {
+                    process.waitFor();
+                    exited = true;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs the tasks of one shard.
+     *
+     * @param args The corpus file, the start and end of the shard's byte
+     *             range, the task file, the output file, and whether to
+     *             dedup sentences.
+     */
+    public static void main(String[] args) {
+        Corpus corpus = new Corpus(args[0]);
+        corpus.setRange(Long.parseLong(args[1]), Long.parseLong(args[2]));
+        boolean dedup = Boolean.parseBoolean(args[5]);
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[3])));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(args[4])))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int type = in.readByte();
+                String w = in.readUTF();
+                String wi = in.readUTF();
+                int distance = in.readInt();
+
+                BigramCollection bigrams;
+                if (type == TASK_STAGE1) {
+                    bigrams = JXtract.collectStageOne(corpus, w, dedup, null);
+                } else {
+                    bigrams = JXtract.collectStageTwo(corpus, w, wi, distance, dedup, null);
+                }
+                bigrams.write(out);
+            }
+        } catch (IOException e) {
+            System.out.println("Error running shard: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}